@@ -95,8 +95,6 @@
 
 package agilejson;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -112,8 +110,16 @@ import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.lang.ClassNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -172,12 +178,44 @@ public class Base64 {
   /** The new line character (\n) as a byte. */
   private final static byte NEW_LINE = (byte) '\n';
 
+  /**
+   * Block size used when streaming files. A multiple of 57, so every full
+   * block encodes to whole 76 character lines.
+   */
+  private final static int FILE_BLOCK = 57 * 1024;
+
+  /** Block size used when encoding buffers and streams into text. */
+  private final static int TEXT_BLOCK = 57 * 64;
+
   /** Preferred encoding. */
   private final static String PREFERRED_ENCODING = "UTF-8";
 
   private final static byte WHITE_SPACE_ENC = -5; // Indicates white space
   private final static byte EQUALS_SIGN_ENC = -1; // Indicates equals sign
 
+  /** Maximum number of idle Deflaters (and Inflaters) kept for reuse. */
+  private final static int POOL_SIZE =
+    2 * Runtime.getRuntime().availableProcessors();
+
+  /** Idle raw (nowrap) Deflaters used by the GZIP option. */
+  private final static BlockingQueue<Deflater> DEFLATERS =
+    new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+
+  /** Idle raw (nowrap) Inflaters used when decoding gzipped data. */
+  private final static BlockingQueue<Inflater> INFLATERS =
+    new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+
+  /** Fixed ten byte GZIP member header: magic, deflate, no flags, no mtime. */
+  private final static byte[] GZIP_HEADER = { (byte) 0x1f, (byte) 0x8b,
+    Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+  };
+
+  /* GZIP header flag bits (RFC1952). */
+  private final static int FHCRC = 2;
+  private final static int FEXTRA = 4;
+  private final static int FNAME = 8;
+  private final static int FCOMMENT = 16;
+
   /* ******** S T A N D A R D   B A S E 6 4   A L P H A B E T ******** */
 
   /** The 64 valid Base64 values. */
@@ -419,6 +457,179 @@ public class Base64 {
     System.err.println("Usage: java Base64 -e|-d inputfile outputfile");
   } // end usage
 
+  /* ******** G Z I P   P O O L ******** */
+
+  /**
+   * Takes an idle raw Deflater from the pool, or creates one, and sets it to
+   * the requested compression level.
+   * 
+   * @param level Compression level 0-9 or Deflater.DEFAULT_COMPRESSION
+   * @return a Deflater ready for a new stream
+   */
+  protected static Deflater acquireDeflater(int level) {
+    Deflater def = DEFLATERS.poll();
+    if (def == null) {
+      return new Deflater(level, true);
+    }
+    try {
+      def.setLevel(level);
+    } catch (IllegalArgumentException e) {
+      releaseDeflater(def);
+      throw e;
+    } // end catch
+    return def;
+  } // end acquireDeflater
+
+  /**
+   * Resets a Deflater and returns it to the pool. If the pool is full the
+   * native resources are released instead.
+   * 
+   * @param def the Deflater to give back
+   */
+  protected static void releaseDeflater(Deflater def) {
+    def.reset();
+    if (!DEFLATERS.offer(def)) {
+      def.end();
+    }
+  } // end releaseDeflater
+
+  /**
+   * Takes an idle raw Inflater from the pool, or creates one.
+   * 
+   * @return an Inflater ready for a new stream
+   */
+  protected static Inflater acquireInflater() {
+    Inflater inf = INFLATERS.poll();
+    return inf != null ? inf : new Inflater(true);
+  } // end acquireInflater
+
+  /**
+   * Resets an Inflater and returns it to the pool. If the pool is full the
+   * native resources are released instead.
+   * 
+   * @param inf the Inflater to give back
+   */
+  protected static void releaseInflater(Inflater inf) {
+    inf.reset();
+    if (!INFLATERS.offer(inf)) {
+      inf.end();
+    }
+  } // end releaseInflater
+
+  /**
+   * Decompresses one or more concatenated GZIP members held entirely in
+   * <var>bytes</var> with a pooled Inflater, checking each member's CRC and
+   * length.
+   * 
+   * @param bytes gzip data, starting with the GZIP magic number
+   * @return the decompressed data or <tt>null</tt> if it is not valid GZIP
+   */
+  private static byte[] gunzip(byte[] bytes) {
+    // Size hint from the ISIZE field of the (last) member's trailer
+    int hint = (bytes[bytes.length - 4] & 0xff)
+        | ((bytes[bytes.length - 3] & 0xff) << 8)
+        | ((bytes[bytes.length - 2] & 0xff) << 16)
+        | ((bytes[bytes.length - 1] & 0xff) << 24);
+    byte[] out = new byte[Math.min(Math.max(hint, 64), 1 << 24)];
+    int outPosn = 0;
+
+    Inflater inf = acquireInflater();
+    CRC32 crc = new CRC32();
+    try {
+      int pos = 0;
+      while (pos < bytes.length) {
+        int start = pos;
+        pos = skipGZIPHeader(bytes, pos);
+        if (pos < 0) {
+          return null;
+        }
+
+        inf.setInput(bytes, pos, bytes.length - pos);
+        crc.reset();
+        while (!inf.finished()) {
+          if (outPosn == out.length) {
+            byte[] grown = new byte[out.length * 2];
+            System.arraycopy(out, 0, grown, 0, outPosn);
+            out = grown;
+          }
+          int n = inf.inflate(out, outPosn, out.length - outPosn);
+          if (n == 0 && (inf.needsInput() || inf.needsDictionary())) {
+            return null;                          // Truncated member
+          }
+          crc.update(out, outPosn, n);
+          outPosn += n;
+        } // end while: inflating member
+
+        // Trailer: CRC32 then ISIZE, both little endian
+        pos = bytes.length - inf.getRemaining();
+        if (pos + 8 > bytes.length
+            || readInt(bytes, pos) != (int) crc.getValue()
+            || readInt(bytes, pos + 4) != (int) inf.getBytesWritten()) {
+          return null;
+        }
+        pos += 8;
+        inf.reset();
+
+        // Anything else must be another member.
+        if (pos < bytes.length && (bytes.length - pos < 18
+            || (bytes[pos] & 0xff) != 0x1f || (bytes[pos + 1] & 0xff) != 0x8b)) {
+          return null;
+        }
+      } // end while: each member
+
+    } catch (DataFormatException e) {
+      return null;
+
+    } finally {
+      releaseInflater(inf);
+    } // end finally
+
+    if (outPosn == out.length) {
+      return out;
+    }
+    byte[] result = new byte[outPosn];
+    System.arraycopy(out, 0, result, 0, outPosn);
+    return result;
+  } // end gunzip
+
+  /**
+   * Returns the index of the first deflate byte after the GZIP member header
+   * starting at <var>pos</var>, or -1 if the header is malformed.
+   */
+  private static int skipGZIPHeader(byte[] bytes, int pos) {
+    if (pos + 10 > bytes.length || bytes[pos + 2] != Deflater.DEFLATED) {
+      return -1;
+    }
+    int flags = bytes[pos + 3] & 0xff;
+    pos += 10;
+    if ((flags & FEXTRA) == FEXTRA) {
+      if (pos + 2 > bytes.length) {
+        return -1;
+      }
+      pos += 2 + ((bytes[pos] & 0xff) | ((bytes[pos + 1] & 0xff) << 8));
+    }
+    if ((flags & FNAME) == FNAME) {
+      while (pos < bytes.length && bytes[pos++] != 0) {
+        // skip zero terminated file name
+      }
+    }
+    if ((flags & FCOMMENT) == FCOMMENT) {
+      while (pos < bytes.length && bytes[pos++] != 0) {
+        // skip zero terminated comment
+      }
+    }
+    if ((flags & FHCRC) == FHCRC) {
+      pos += 2;
+    }
+    return pos < bytes.length ? pos : -1;
+  } // end skipGZIPHeader
+
+  /** Reads a little endian int. */
+  private static int readInt(byte[] b, int pos) {
+    return (b[pos] & 0xff) | ((b[pos + 1] & 0xff) << 8)
+        | ((b[pos + 2] & 0xff) << 16) | ((b[pos + 3] & 0xff) << 24);
+  } // end readInt
+
   /* ******** E N C O D I N G   M E T H O D S ******** */
 
   /**
@@ -549,6 +760,26 @@ public class Base64 {
    */
   public static String encodeObject(Serializable serializableObject,
       int options) {
+    return encodeObject(serializableObject, options,
+        Deflater.DEFAULT_COMPRESSION);
+  } // end encodeObject
+
+  /**
+   * Serializes an object and returns the Base64-encoded version of that
+   * serialized object, gzip-compressing it at the given level when the
+   * GZIP option is set. The compressor is taken from a pool rather than
+   * created per call.
+   * 
+   * @param serializableObject The object to encode
+   * @param options Specified options
+   * @param level Compression level 0-9, or
+   *   <tt>Deflater.DEFAULT_COMPRESSION</tt>. Ignored without GZIP.
+   * @see Base64#GZIP
+   * @see Base64#DONT_BREAK_LINES
+   * @return The Base64-encoded object
+   */
+  public static String encodeObject(Serializable serializableObject,
+      int options, int level) {
 
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     OutputStream b64os = null;
@@ -558,10 +789,16 @@ public class Base64 {
       b64os = new Base64OutputStream(baos, ENCODE | options);
 
       oos = ((options & GZIP) == GZIP) ?
-          new ObjectOutputStream(new GZIPOutputStream(b64os)) :
+          new ObjectOutputStream(new PooledGZIPOutputStream(b64os, level)) :
             new ObjectOutputStream(b64os);
 
       oos.writeObject(serializableObject);
+
+      // Closing pushes out the object stream's block buffer, the gzip
+      // trailer and the Base64 padding before the bytes are read back.
+      oos.close();
+      oos = null;
+      b64os = null;
       return new String(baos.toByteArray(), PREFERRED_ENCODING);
 
     } catch (UnsupportedEncodingException uue) {
@@ -679,14 +916,37 @@ public class Base64 {
    * @since 2.0
    */
   public static String encodeBytes(byte[] source, int off, int len, int options) {
+    return encodeBytes(source, off, len, options, Deflater.DEFAULT_COMPRESSION);
+  } // end encodeBytes
+
+  /**
+   * Encodes a byte array into Base64 notation, gzip-compressing it at the
+   * given level when the GZIP option is set. Compression runs in a single
+   * pass: the pooled Deflater's output is Base64-encoded as it is produced.
+   * 
+   * @param source The data to convert
+   * @param off Offset in array where conversion should begin
+   * @param len Length of data to convert
+   * @param options Specified options
+   * @param level Compression level 0-9, or
+   *   <tt>Deflater.DEFAULT_COMPRESSION</tt>. Ignored without GZIP.
+   * @see Base64#GZIP
+   * @see Base64#DONT_BREAK_LINES
+   * @see Base64#URL_SAFE
+   * @see Base64#ORDERED
+   * @return encoded byte array
+   */
+  public static String encodeBytes(byte[] source, int off, int len,
+      int options, int level) {
     if ((options & GZIP) == GZIP) {                             // Compress?
       // GZip -> Base64 -> ByteArray
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      GZIPOutputStream gzos = null;
+      ByteArrayOutputStream baos =
+        new ByteArrayOutputStream(Math.max(64, len / 2));
+      PooledGZIPOutputStream gzos = null;
 
       try {
-        gzos = 
-          new GZIPOutputStream(new Base64OutputStream(baos, ENCODE | options));
+        gzos = new PooledGZIPOutputStream(
+            new Base64OutputStream(baos, ENCODE | options), level);
 
         gzos.write(source, off, len);
         gzos.close();
@@ -705,7 +965,7 @@ public class Base64 {
           try {
             gzos.close();
           } catch (Exception e) {
-            LOG.error("error closing GZIPOutputStream", e);
+            LOG.error("error closing PooledGZIPOutputStream", e);
           }
         }
         try {
@@ -755,6 +1015,75 @@ public class Base64 {
     }
   } // end encodeBytes
 
+  /**
+   * Encodes the remaining bytes of a buffer into Base64 notation and appends
+   * them to <var>out</var>. The buffer is read in place through a duplicate,
+   * so its position is left alone and direct or memory-mapped buffers are
+   * never copied to the heap as a whole; only a small block at a time is.
+   * 
+   * @param source The data to convert
+   * @param out Where to append the encoded text
+   * @param options Specified options
+   * @throws IOException if <var>out</var> throws
+   * @see Base64#DONT_BREAK_LINES
+   * @see Base64#URL_SAFE
+   * @see Base64#ORDERED
+   */
+  public static void encode(ByteBuffer source, Appendable out, int options)
+      throws IOException {
+    ByteBuffer src = source.duplicate();
+    byte[] block = new byte[Math.min(TEXT_BLOCK, src.remaining())];
+    byte[] outBuff = new byte[encodedBlockLength(block.length)];
+    boolean continued = false;
+    while (src.hasRemaining()) {
+      int len = Math.min(block.length, src.remaining());
+      src.get(block, 0, len);
+      int e = encodeBlock(block, len, outBuff, continued, options);
+      out.append(new String(outBuff, 0, e, PREFERRED_ENCODING));
+      continued = true;
+    } // end while: each block
+  } // end encode
+
+  /**
+   * Reads <var>in</var> until end of stream, encoding it into Base64 notation
+   * and appending the result to <var>out</var> a block at a time. The
+   * stream is not closed.
+   * 
+   * @param in The data to convert
+   * @param out Where to append the encoded text
+   * @param options Specified options
+   * @throws IOException if reading <var>in</var> or appending to
+   *   <var>out</var> fails
+   * @see Base64#DONT_BREAK_LINES
+   * @see Base64#URL_SAFE
+   * @see Base64#ORDERED
+   */
+  public static void encode(InputStream in, Appendable out, int options)
+      throws IOException {
+    byte[] block = new byte[TEXT_BLOCK];
+    byte[] outBuff = new byte[encodedBlockLength(TEXT_BLOCK)];
+    boolean continued = false;
+    boolean eof = false;
+    while (!eof) {
+      // Fill the block completely so that only the last one is short.
+      int len = 0;
+      while (len < block.length) {
+        int n = in.read(block, len, block.length - len);
+        if (n < 0) {
+          eof = true;
+          break;
+        }
+        len += n;
+      } // end while: filling block
+      if (len == 0) {
+        break;
+      }
+      int e = encodeBlock(block, len, outBuff, continued, options);
+      out.append(new String(outBuff, 0, e, PREFERRED_ENCODING));
+      continued = true;
+    } // end while: each block
+  } // end encode
+
   /* ******** D E C O D I N G   M E T H O D S ******** */
 
   /**
@@ -938,36 +1267,13 @@ public class Base64 {
     if (bytes != null && bytes.length >= 4) {
       int head = (bytes[0] & 0xff) | ((bytes[1] << 8) & 0xff00);
       if (GZIPInputStream.GZIP_MAGIC == head) {
-        GZIPInputStream gzis = null;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-          gzis = new GZIPInputStream(new ByteArrayInputStream(bytes));
-
-          byte[] buffer = new byte[2048];
-          for (int length = 0; (length = gzis.read(buffer)) >= 0; ) {
-            baos.write(buffer, 0, length);
-          } // end while: reading input
-
-          // No error? Get new bytes.
-          bytes = baos.toByteArray();
+        byte[] inflated = gunzip(bytes);
 
-        } catch (IOException e) {
-          // Just return originally-decoded bytes
-
-        } finally {
-          try {
-            baos.close();
-          } catch (Exception e) {
-            LOG.error("error closing ByteArrayOutputStream", e);
-          }
-          if (gzis != null) {
-            try {
-              gzis.close();
-            } catch (Exception e) {
-              LOG.error("error closing GZIPInputStream", e);
-            }
-          }
-        } // end finally
+        // No error? Get new bytes. Otherwise just return the
+        // originally-decoded bytes.
+        if (inflated != null) {
+          bytes = inflated;
+        }
       } // end if: gzipped
     } // end if: bytes.length >= 2
 
@@ -1081,6 +1387,8 @@ public class Base64 {
 
   /**
    * Convenience method for reading a base64-encoded file and decoding it.
+   * The file is streamed through a fixed size block, so apart from the
+   * result itself only a constant amount of memory is used.
    * 
    * @param filename Filename for reading encoded data
    * @return decoded byte array or null if unsuccessful
@@ -1089,10 +1397,9 @@ public class Base64 {
    */
   public static byte[] decodeFromFile(String filename) {
     byte[] decodedData = null;
-    Base64InputStream bis = null;
+    FileInputStream in = null;
     try {
       File file = new File(filename);
-      byte[] buffer = null;
 
       // Check the size of file
       if (file.length() > Integer.MAX_VALUE) {
@@ -1100,35 +1407,27 @@ public class Base64 {
             file.length() + " bytes).");
         return null;
       } // end if: file too big for int index
-      
-      buffer = new byte[(int) file.length()];
 
-      // Open a stream
-      
-      bis = new Base64InputStream(new BufferedInputStream(
-          new FileInputStream(file)), DECODE);
+      // Upper limit on size of output
+      ByteArrayOutputStream baos =
+        new ByteArrayOutputStream((int) (file.length() * 3 / 4) + 3);
+
+      in = new FileInputStream(file);
+      decodeChannel(in.getChannel(), baos, DECODE);
 
-      // Read until done
-      
-      int length = 0;
-      for (int numBytes = 0; (numBytes = bis.read(buffer, length, 4096)) >= 0; ) {
-        length += numBytes;
-      }
-      
       // Save in a variable to return
       
-      decodedData = new byte[length];
-      System.arraycopy(buffer, 0, decodedData, 0, length);
+      decodedData = baos.toByteArray();
 
     } catch (IOException e) {
       LOG.error("Error decoding from file " + filename, e);
     
     } finally {
-      if (bis != null) {
+      if (in != null) {
         try {
-          bis.close();
+          in.close();
         } catch (Exception e) {
-          LOG.error("error closing Base64InputStream", e);
+          LOG.error("error closing " + filename, e);
         }
       }
     } // end finally
@@ -1138,6 +1437,9 @@ public class Base64 {
 
   /**
    * Convenience method for reading a binary file and base64-encoding it.
+   * The file is streamed through a fixed size block into an exactly sized
+   * result, so apart from the result itself only a constant amount of memory
+   * is used.
    * 
    * @param filename Filename for reading binary data
    * @return base64-encoded string or null if unsuccessful
@@ -1146,38 +1448,37 @@ public class Base64 {
    */
   public static String encodeFromFile(String filename) {
     String encodedData = null;
-    Base64InputStream bis = null;
+    FileInputStream in = null;
     try {
       File file = new File(filename);
-      
-      // Need max() for math on small files (v2.2.1)
-      
-      byte[] buffer = new byte[Math.max((int) (file.length() * 1.4), 40)];
+      long encodedLength = encodedLength(file.length(), ENCODE);
 
-      // Open a stream
+      // Check the size of the result
+      if (encodedLength > Integer.MAX_VALUE) {
+        LOG.fatal("File is too big for this convenience method (" + 
+            file.length() + " bytes).");
+        return null;
+      } // end if: result too big for a String
 
-      bis = new Base64InputStream(new BufferedInputStream(
-              new FileInputStream(file)), ENCODE);
+      ByteArrayOutputStream baos =
+        new ByteArrayOutputStream((int) Math.max(encodedLength, 4));
 
-      // Read until done
-      int length = 0;
-      for (int numBytes = 0; (numBytes = bis.read(buffer, length, 4096)) >= 0; ) {
-        length += numBytes;
-      }
+      in = new FileInputStream(file);
+      encodeChannel(in.getChannel(), baos, ENCODE);
 
       // Save in a variable to return
       
-      encodedData = new String(buffer, 0, length, PREFERRED_ENCODING);
+      encodedData = baos.toString(PREFERRED_ENCODING);
 
     } catch (IOException e) {
       LOG.error("Error encoding from file " + filename, e);
       
     } finally {
-      if (bis != null) {
+      if (in != null) {
         try {
-          bis.close();
+          in.close();
         } catch (Exception e) {
-          LOG.error("error closing Base64InputStream", e);
+          LOG.error("error closing " + filename, e);
         }
       }
     } // end finally
@@ -1186,23 +1487,32 @@ public class Base64 {
   } // end encodeFromFile
 
   /**
-   * Reads <tt>infile</tt> and encodes it to <tt>outfile</tt>.
+   * Reads <tt>infile</tt> and encodes it to <tt>outfile</tt>. The data is
+   * streamed from one file to the other in constant memory.
    * 
    * @param infile Input file
    * @param outfile Output file
    * @since 2.2
    */
   public static void encodeFileToFile(String infile, String outfile) {
-    String encoded = encodeFromFile(infile);
+    FileInputStream in = null;
     OutputStream out = null;
     try {
-      out = new BufferedOutputStream(new FileOutputStream(outfile));
-      out.write(encoded.getBytes("US-ASCII")); // Strict, 7-bit output.
+      in = new FileInputStream(infile);
+      out = new FileOutputStream(outfile);
+      encodeChannel(in.getChannel(), out, ENCODE); // Strict, 7-bit output.
     
     } catch (IOException e) {
       LOG.error("error encoding from file " + infile + " to " + outfile, e);
 
     } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (Exception e) {
+          LOG.error("error closing " + infile, e);
+        }
+      }
       if (out != null) {
         try {
           out.close();
@@ -1214,23 +1524,32 @@ public class Base64 {
   } // end encodeFileToFile
 
   /**
-   * Reads <tt>infile</tt> and decodes it to <tt>outfile</tt>.
+   * Reads <tt>infile</tt> and decodes it to <tt>outfile</tt>. The data is
+   * streamed from one file to the other in constant memory.
    * 
    * @param infile Input file
    * @param outfile Output file
    * @since 2.2
    */
   public static void decodeFileToFile(String infile, String outfile) {
-    byte[] decoded = decodeFromFile(infile);
+    FileInputStream in = null;
     OutputStream out = null;
     try {
-      out = new BufferedOutputStream(new FileOutputStream(outfile));
-      out.write(decoded);
+      in = new FileInputStream(infile);
+      out = new FileOutputStream(outfile);
+      decodeChannel(in.getChannel(), out, DECODE);
       
     } catch (IOException e) {
       LOG.error("error decoding from file " + infile + " to " + outfile, e);
 
     } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (Exception e) {
+          LOG.error("error closing " + infile, e);
+        }
+      }
       if (out != null) {
         try {
           out.close();
@@ -1241,6 +1560,170 @@ public class Base64 {
     } // end finally
   } // end decodeFileToFile
 
+  /* ******** S T R E A M I N G   C H A N N E L   M E T H O D S ******** */
+
+  /**
+   * Returns the number of bytes <var>len</var> input bytes encode to, with
+   * line breaks placed the way {@link #encodeChannel} and
+   * {@link Base64InputStream} place them (between lines, none trailing).
+   * 
+   * @param len number of input bytes
+   * @param options Specified options
+   * @return length of the encoded output
+   */
+  protected static long encodedLength(long len, int options) {
+    long quads = (len + 2) / 3;
+    long chars = quads * 4;
+    if ((options & DONT_BREAK_LINES) == 0 && chars > 0) {
+      chars += (chars - 1) / MAX_LINE_LENGTH;
+    }
+    return chars;
+  } // end encodedLength
+
+  /**
+   * Reads <var>in</var> until end of stream and writes its Base64 encoding to
+   * <var>out</var>. Input is read in blocks of {@link #FILE_BLOCK} bytes and
+   * each block is encoded with one bulk pass and one write, so memory use
+   * does not depend on the size of the input.
+   * 
+   * @param in channel to read binary data from
+   * @param out stream receiving the encoded data
+   * @param options Specified options
+   * @return number of encoded bytes written
+   * @throws IOException if reading or writing fails
+   */
+  protected static long encodeChannel(ReadableByteChannel in,
+      OutputStream out, int options) throws IOException {
+    byte[] source = new byte[FILE_BLOCK];
+    byte[] outBuff = new byte[encodedBlockLength(FILE_BLOCK)];
+    ByteBuffer buf = ByteBuffer.wrap(source);
+    long written = 0;
+    boolean eof = false;
+
+    while (!eof) {
+      // Fill the block completely so that only the last one is short.
+      buf.clear();
+      while (buf.hasRemaining()) {
+        if (in.read(buf) < 0) {
+          eof = true;
+          break;
+        }
+      } // end while: filling block
+      int len = buf.position();
+
+      int e = encodeBlock(source, len, outBuff, written > 0, options);
+      out.write(outBuff, 0, e);
+      written += e;
+    } // end while: each block
+
+    return written;
+  } // end encodeChannel
+
+  /**
+   * Size of the output array {@link #encodeBlock} needs for a block of
+   * <var>len</var> bytes.
+   */
+  private static int encodedBlockLength(int len) {
+    return (len + 2) / 3 * 4 + (len + 2) / 3 * 4 / MAX_LINE_LENGTH + 1;
+  } // end encodedBlockLength
+
+  /**
+   * Encodes one block of a larger stream. Every block but the last must be a
+   * multiple of 57 bytes long so that it ends on a whole line; a line break is
+   * then written in front of each following block, giving the same output as
+   * {@link Base64InputStream}.
+   * 
+   * @param source the block to convert
+   * @param len number of bytes in the block
+   * @param destination array to hold the conversion
+   * @param continued whether earlier blocks have been encoded
+   * @param options Specified options
+   * @return number of bytes written to <var>destination</var>
+   */
+  private static int encodeBlock(byte[] source, int len, byte[] destination,
+      boolean continued, int options) {
+    boolean breakLines = ((options & DONT_BREAK_LINES) == 0);
+    int lineLength = continued ? MAX_LINE_LENGTH : 0;
+    int e = 0;
+    for (int d = 0; d < len; d += 3) {
+      if (breakLines && lineLength >= MAX_LINE_LENGTH) {
+        destination[e++] = NEW_LINE;
+        lineLength = 0;
+      } // end if: end of line
+      encode3to4(source, d, Math.min(3, len - d), destination, e, options);
+      e += 4;
+      lineLength += 4;
+    } // end for: each triplet
+    return e;
+  } // end encodeBlock
+
+  /**
+   * Reads Base64 data from <var>in</var> until end of stream and writes the
+   * decoded bytes to <var>out</var>. White space and characters outside the
+   * alphabet are skipped, as in {@link Base64InputStream}. Memory use does
+   * not depend on the size of the input.
+   * 
+   * @param in channel to read encoded data from
+   * @param out stream receiving the decoded data
+   * @param options Specified options
+   * @return number of decoded bytes written
+   * @throws IOException if reading or writing fails or the input is
+   *   improperly padded
+   */
+  protected static long decodeChannel(ReadableByteChannel in,
+      OutputStream out, int options) throws IOException {
+    byte[] DECODABET = getDecodabet(options);
+
+    byte[] source = new byte[FILE_BLOCK];
+    byte[] outBuff = new byte[FILE_BLOCK / 4 * 3 + 3];
+    ByteBuffer buf = ByteBuffer.wrap(source);
+    byte[] b4 = new byte[4];
+    int b4Posn = 0;
+    long written = 0;
+
+    for (int len; (len = readBlock(in, buf)) >= 0; ) {
+      int e = 0;
+      for (int i = 0; i < len; i++) {
+        byte sbiCrop = (byte) (source[i] & 0x7f);     // Only the low seven bits
+        if (DECODABET[sbiCrop] > WHITE_SPACE_ENC) {   // Equals or better
+          b4[b4Posn++] = sbiCrop;
+          if (b4Posn > 3) {
+            int n = decode4to3(b4, 0, outBuff, e, options);
+            if (n < 0) {
+              throw new IOException("Invalid Base64 input.");
+            }
+            e += n;
+            b4Posn = 0;
+          } // end if: quartet built
+        } // end if: meaningful character
+      } // end for: each input character
+
+      out.write(outBuff, 0, e);
+      written += e;
+    } // end for: each block
+
+    if (b4Posn != 0) {
+      throw new IOException("Improperly padded Base64 input.");
+    }
+    return written;
+  } // end decodeChannel
+
+  /**
+   * Reads the next block from <var>in</var> into the array backing
+   * <var>buf</var>.
+   * 
+   * @return number of bytes read, or -1 at end of stream
+   */
+  private static int readBlock(ReadableByteChannel in, ByteBuffer buf)
+      throws IOException {
+    buf.clear();
+    int n;
+    do {
+      n = in.read(buf);
+    } while (n == 0);
+    return n;
+  } // end readBlock
+
   /* ******** I N N E R   C L A S S   I N P U T S T R E A M ******** */
 
   /**
@@ -1459,6 +1942,7 @@ public class Base64 {
     private int lineLength;
     private boolean breakLines;
     private byte[] b4;                          // Scratch used in a few places
+    private byte[] block;                       // Scratch for bulk encoding
     private boolean suspendEncoding;
     private int options;                        // Record for later
     private byte[] decodabet;                   // Local copy avoids method calls
@@ -1557,8 +2041,12 @@ public class Base64 {
     } // end write
 
     /**
-     * Calls {@link #write(int)} repeatedly until <var>len</var> bytes are
-     * written.
+     * Writes <var>len</var> bytes. When encoding, a partly filled triplet is
+     * topped up first, whole triplets are then encoded in bulk into a
+     * scratch block that is written to the underlying stream in large
+     * pieces, and any remaining one or two bytes are kept for the next
+     * write. When decoding the bytes go through {@link #write(int)} one at
+     * a time, and with encoding suspended they are passed straight through.
      * 
      * @param theBytes array from which to read bytes
      * @param off offset for array
@@ -1573,10 +2061,46 @@ public class Base64 {
         return;
       } // end if: supsended
 
-      for (int i = 0; i < len; i++) {
-        write(theBytes[off + i]);
-      } // end for: each byte written
+      if (!encode) {
+        for (int i = 0; i < len; i++) {
+          write(theBytes[off + i]);
+        } // end for: each byte written
+        return;
+      } // end if: decoding
+
+      // Top up a partially filled three byte buffer first.
+      while (len > 0 && position > 0) {
+        write(theBytes[off++]);
+        len--;
+      } // end while: topping up
+
+      // Encode whole triplets straight into a scratch block so the
+      // underlying stream sees a few large writes instead of many small ones.
+      if (len >= 3 && block == null) {
+        block = new byte[4096];
+      }
+      int e = 0;
+      for (; len >= 3; off += 3, len -= 3) {
+        if (e > block.length - 5) {
+          out.write(block, 0, e);
+          e = 0;
+        }
+        encode3to4(theBytes, off, 3, block, e, options);
+        e += 4;
+        lineLength += 4;
+        if (breakLines && lineLength >= MAX_LINE_LENGTH) {
+          block[e++] = NEW_LINE;
+          lineLength = 0;
+        } // end if: end of line
+      } // end for: each triplet
+      if (e > 0) {
+        out.write(block, 0, e);
+      }
 
+      // Keep the remainder for the next write or flushBase64().
+      for (int i = 0; i < len; i++) {
+        buffer[position++] = theBytes[off + i];
+      }
     } // end write
 
     /**
@@ -1640,4 +2164,120 @@ public class Base64 {
 
   } // end inner class OutputStream
 
+  /* ******** I N N E R   C L A S S   G Z I P   O U T P U T S T R E A M ******** */
+
+  /**
+   * A {@link Base64.PooledGZIPOutputStream} writes GZIP-compressed data to
+   * another <tt>OutputStream</tt>, like <tt>java.util.zip.GZIPOutputStream</tt>,
+   * but borrows its Deflater from a pool shared by all instances and lets the
+   * caller choose the compression level. The Deflater is handed back when the
+   * stream is closed, so always close it.
+   * 
+   * @see Base64
+   */
+  public static class PooledGZIPOutputStream extends DeflaterOutputStream {
+    private CRC32 crc = new CRC32();
+    private boolean finished;
+
+    /**
+     * Constructs a {@link PooledGZIPOutputStream} with the default
+     * compression level.
+     * 
+     * @param out the <tt>OutputStream</tt> receiving the compressed data.
+     * @throws IOException if the GZIP header cannot be written
+     */
+    public PooledGZIPOutputStream(OutputStream out) throws IOException {
+      this(out, Deflater.DEFAULT_COMPRESSION);
+    } // end constructor
+
+    /**
+     * Constructs a {@link PooledGZIPOutputStream} with the given
+     * compression level.
+     * 
+     * @param out the <tt>OutputStream</tt> receiving the compressed data.
+     * @param level Compression level 0-9 or Deflater.DEFAULT_COMPRESSION
+     * @throws IOException if the GZIP header cannot be written
+     */
+    public PooledGZIPOutputStream(OutputStream out, int level)
+        throws IOException {
+      this(checkStream(out), acquireDeflater(level));
+    } // end constructor
+
+    /**
+     * Writes the GZIP header, giving the pooled Deflater back if that fails
+     * since close() will never be called on a stream that was not built.
+     */
+    private PooledGZIPOutputStream(OutputStream out, Deflater def)
+        throws IOException {
+      super(out, def, 4096);
+      try {
+        out.write(GZIP_HEADER);
+      } catch (IOException e) {
+        releaseDeflater(def);
+        this.def = null;
+        throw e;
+      } catch (RuntimeException e) {
+        releaseDeflater(def);
+        this.def = null;
+        throw e;
+      } // end catch
+    } // end constructor
+
+    /**
+     * Rejects a null stream before a Deflater is taken from the pool, as
+     * the super constructor would throw with the Deflater already taken.
+     */
+    private static OutputStream checkStream(OutputStream out) {
+      if (out == null) {
+        throw new NullPointerException("out");
+      }
+      return out;
+    } // end checkStream
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      super.write(b, off, len);
+      crc.update(b, off, len);
+    } // end write
+
+    /**
+     * Finishes the deflate stream and writes the GZIP trailer without
+     * closing the underlying stream.
+     */
+    @Override
+    public void finish() throws IOException {
+      if (finished) {
+        return;
+      }
+      super.finish();
+      int crcValue = (int) crc.getValue();
+      int size = (int) def.getBytesRead();
+      byte[] trailer = {
+        (byte) crcValue, (byte) (crcValue >> 8),
+        (byte) (crcValue >> 16), (byte) (crcValue >> 24),
+        (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+      };
+      out.write(trailer);
+      finished = true;
+    } // end finish
+
+    /**
+     * Finishes the GZIP member, closes the underlying stream and returns the
+     * Deflater to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+      if (def == null) {
+        return;
+      }
+      try {
+        super.close();
+      } finally {
+        releaseDeflater(def);
+        def = null;
+      }
+    } // end close
+
+  } // end inner class PooledGZIPOutputStream
+
 } // end class Base64
@@ -0,0 +1,178 @@
+/**
+ * BeanPlan.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * The @TOJSON getters of a class, found once and kept so that serializing an
+ * instance does not have to go through getMethods(), getAnnotation() and
+ * deCamelCase() again. Getters are kept in getMethods() order.
+ *
+ * A class whose getters declare @TOJSON views has a further plan per view,
+ * made on first use and kept, holding only the getters in that view.
+ */
+class BeanPlan {
+
+  /**
+   * One zero argument @TOJSON method and the key it is written under.
+   */
+  static final class Getter {
+    final Method method;
+    final TOJSON annotation;
+    final String key;
+    /** The key a null value is written under, see nullKeyFor. */
+    final String nullKey;
+    final boolean future;
+
+    Getter(Method method, TOJSON annotation) {
+      this.method = method;
+      this.annotation = annotation;
+      this.key = keyFor(method, annotation);
+      this.nullKey = nullKeyFor(method, annotation);
+      Class r = method.getReturnType();
+      this.future = Future.class.isAssignableFrom(r) || CompletionStage.class.isAssignableFrom(r);
+    }
+  }
+
+  final Getter[] getters;
+
+  /** Number of getters marked @TOJSON(blocking = true). */
+  final int blockingCount;
+
+  /** Number of getters declared to return a Future or CompletionStage. */
+  final int futureCount;
+
+  /** Whether this is the plan of a view that leaves out some getters. */
+  final boolean partial;
+
+  /** Plans by view name, null if no getter declares views. */
+  private final Map<String, BeanPlan> views;
+
+  BeanPlan(Class c) {
+    this(find(c), false);
+  }
+
+  private BeanPlan(Getter[] getters, boolean partial) {
+    this.getters = getters;
+    this.partial = partial;
+    int blocking = 0;
+    int futures = 0;
+    boolean viewed = false;
+    for (int i = 0; i < getters.length; i++) {
+      if (getters[i].annotation.blocking()) {
+        blocking++;
+      }
+      if (getters[i].future) {
+        futures++;
+      }
+      viewed |= getters[i].annotation.views().length > 0;
+    }
+    blockingCount = blocking;
+    futureCount = futures;
+    // the plans of views are not split up further
+    views = viewed && !partial ? new ConcurrentHashMap<String, BeanPlan>() : null;
+  }
+
+  private static Getter[] find(Class c) {
+    Method[] methods = c.getMethods();
+    List<Getter> found = new ArrayList<Getter>();
+    for (int i = 0; i < methods.length; i++) {
+      TOJSON a;
+      if (methods[i].getParameterTypes().length == 0 && (a = methods[i].getAnnotation(TOJSON.class)) != null) {
+        found.add(new Getter(methods[i], a));
+      }
+    }
+    return found.toArray(new Getter[found.size()]);
+  }
+
+  /**
+   * Returns the plan of the getters written in the named view: those that
+   * list it in their views and those that list no views at all.
+   * @param view the view, or null for all getters
+   * @return the view's plan, this plan if no getter declares views
+   */
+  BeanPlan view(String view) {
+    if (views == null || view == null) {
+      return this;
+    }
+    BeanPlan plan = views.get(view);
+    if (plan == null) {
+      List<Getter> in = new ArrayList<Getter>();
+      for (int i = 0; i < getters.length; i++) {
+        String[] names = getters[i].annotation.views();
+        boolean member = names.length == 0;
+        for (int j = 0; j < names.length && !member; j++) {
+          member = names[j].equals(view);
+        }
+        if (member) {
+          in.add(getters[i]);
+        }
+      }
+      plan = in.size() == getters.length ? this : new BeanPlan(in.toArray(new Getter[in.size()]), true);
+      views.put(view, plan);
+    }
+    return plan;
+  }
+
+  /**
+   * Works out the json key for a getter from fieldName, or else from the
+   * substring of the method name given by prefixLength and contentLength.
+   * @param m
+   * @param a
+   * @return decamelcased key
+   */
+  static String keyFor(Method m, TOJSON a) {
+    if (a.fieldName().length() != 0) {
+      return JSON.deCamelCase(a.fieldName());
+    } else if (a.contentLength() == -1) {
+      return JSON.deCamelCase(m.getName().substring(a.prefixLength()));
+    } else {
+      return JSON.deCamelCase(m.getName().substring(a.prefixLength(), a.contentLength()));
+    }
+  }
+
+  /**
+   * Works out the json key a null value is written under. It is the same
+   * as keyFor's except that contentLength is counted from prefixLength, as
+   * toJSON has always done for null values.
+   * @param m
+   * @param a
+   * @return decamelcased key
+   */
+  static String nullKeyFor(Method m, TOJSON a) {
+    if (a.fieldName().length() == 0 && a.contentLength() != -1) {
+      return JSON.deCamelCase(m.getName().substring(a.prefixLength(), a.prefixLength() + a.contentLength()));
+    }
+    return keyFor(m, a);
+  }
+}
@@ -0,0 +1,200 @@
+/**
+ * ImmutableCache.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Json of @IMMUTABLE instances, keyed on instance identity and holding
+ * its keys weakly, so an instance that is no longer used elsewhere drops out
+ * of the cache. The cache is split into stripes by identity hash, each with
+ * its own lock and an equal share of the size limit; when a stripe holds
+ * more characters than its share, its least recently used entries are
+ * evicted. The cache is cleared when a setting that changes output does;
+ * Json collected under the old setting is then dropped rather than cached.
+ *
+ * Each entry also keeps the objects that went into alreadyVisited while
+ * the instance was written, so a document reusing the text can check that
+ * none of them was written before and mark them visited in turn.
+ */
+final class ImmutableCache {
+
+  private static final int STRIPES = 16;
+
+  /** Weak reference to an instance that compares by identity. */
+  private static final class Key extends WeakReference<Object> {
+    private final int hash;
+
+    Key(Object o, ReferenceQueue<Object> queue) {
+      super(o, queue);
+      hash = System.identityHashCode(o);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Object o = get();
+      return o != null && o == ((Key) other).get();
+    }
+  }
+
+  /** The Json of an instance and the objects visited writing it. */
+  static final class Entry {
+    final String json;
+    final Object[] visited;
+
+    Entry(String json, Object[] visited) {
+      this.json = json;
+      this.visited = visited;
+    }
+  }
+
+  private static final class Stripe {
+    private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    private long chars;
+
+    synchronized Entry get(Object o) {
+      expunge();
+      return map.get(new Key(o, null));
+    }
+
+    synchronized void put(Object o, Entry entry, long limit) {
+      expunge();
+      Entry old = map.put(new Key(o, queue), entry);
+      chars += entry.json.length() - (old == null ? 0 : old.json.length());
+      trim(limit);
+    }
+
+    synchronized void clear() {
+      map.clear();
+      chars = 0;
+    }
+
+    synchronized void trim(long limit) {
+      Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+      while (chars > limit && it.hasNext()) {
+        chars -= it.next().getValue().json.length();
+        it.remove();
+      }
+    }
+
+    /** Drops the entries of instances that have been collected. */
+    private void expunge() {
+      Object k;
+      while ((k = queue.poll()) != null) {
+        Entry entry = map.remove(k);
+        if (entry != null) {
+          chars -= entry.json.length();
+        }
+      }
+    }
+  }
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private volatile long maxChars;
+  private volatile int generation;
+
+  /**
+   * @param maxChars the most characters of Json to keep, over all stripes
+   */
+  ImmutableCache(long maxChars) {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+    this.maxChars = maxChars;
+  }
+
+  private Stripe stripe(Object o) {
+    int h = System.identityHashCode(o);
+    return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+  }
+
+  /**
+   * @return the cached Json of o and what it visited, or null
+   */
+  Entry get(Object o) {
+    return stripe(o).get(o);
+  }
+
+  /**
+   * Caches the Json of o, unless it is too big to be worth a stripe's space
+   * or the cache was cleared since it was started.
+   * @param visited the objects other than o visited writing it
+   * @param generation generation() when the Json of o was started
+   */
+  void put(Object o, String json, Object[] visited, int generation) {
+    long limit = maxChars / STRIPES;
+    if (json.length() <= limit / 4 && generation == this.generation) {
+      stripe(o).put(o, new Entry(json, visited), limit);
+    }
+  }
+
+  /**
+   * Returns a number that changes each time the cache is cleared.
+   */
+  int generation() {
+    return generation;
+  }
+
+  /**
+   * Drops all entries, and the Json of instances still being collected.
+   */
+  void clear() {
+    generation++;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i].clear();
+    }
+  }
+
+  long getMaxChars() {
+    return maxChars;
+  }
+
+  /**
+   * Changes the size limit, evicting what no longer fits.
+   */
+  void setMaxChars(long max) {
+    maxChars = max;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i].trim(max / STRIPES);
+    }
+  }
+}
@@ -26,13 +26,33 @@
 package agilejson;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
-import java.lang.reflect.Method;
 import java.lang.annotation.*;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.BaseStream;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -184,6 +204,613 @@ public class JSON {
   };
   protected static Set PRIMITIVEARRAYS = new HashSet(Arrays.asList(_primitivearrays));
 
+  /**
+   * When set, every int[], long[], float[] and double[] is written in packed
+   * form (see {@link #packArray}), not only those returned by getters marked
+   * @TOJSON(packed = true).
+   */
+  private static volatile boolean packNumericArrays = false;
+
+  // What toJSON does with a value, decided once per class (see ClassInfo).
+  static final int LITERAL = 0;         // written with toString()
+  static final int STRING = 1;          // String and Character
+  static final int OBJECT_ARRAY = 2;
+  static final int BOXED_BYTE_ARRAY = 3;
+  static final int BOXED_CHAR_ARRAY = 4;
+  static final int BYTE_ARRAY = 5;
+  static final int CHAR_ARRAY = 6;
+  static final int SHORT_ARRAY = 7;
+  static final int INT_ARRAY = 8;
+  static final int LONG_ARRAY = 9;
+  static final int FLOAT_ARRAY = 10;
+  static final int DOUBLE_ARRAY = 11;
+  static final int BOOLEAN_ARRAY = 12;
+  static final int BYTE_BUFFER = 13;
+  static final int INPUT_STREAM = 14;
+  static final int BEAN = 15;
+  static final int LIST = 16;           // RandomAccess List
+  static final int ITERABLE = 17;       // any other Collection/Iterable
+  static final int MAP = 18;
+  static final int FUTURE = 19;         // Future or CompletionStage
+  static final int STREAM = 20;         // java.util.stream BaseStream
+  static final int ITERATOR = 21;
+  static final int COLUMNAR = 22;       // see columnar(Object)
+
+  /**
+   * Everything toJSON needs to know about a class: the kind of value it is,
+   * whether instances go into alreadyVisited and, for beans, the getter
+   * plan. Worked out once per class so each value costs one lookup and one
+   * switch instead of a chain of set lookups and isAssignableFrom checks.
+   */
+  static final class ClassInfo {
+    final int kind;
+    final boolean visited;
+    final BeanPlan plan;
+    /** The class is @IMMUTABLE and not written in one go anyway. */
+    final boolean immutable;
+
+    ClassInfo(Class c) {
+      // Make sure that given a primitive, it is not added to already visited
+      // This is for two reasons:
+      // 1. Classes are sealed so can not point to other objects.
+      // 2. String, et. al., have overridden equals methods which is true
+      //     given equality of value, not equality of reference.
+      // This results in the loss of values in the json representation
+      visited = !PRIMITIVES.contains(c);
+      int k = kindOf(c);
+      BeanPlan p = null;
+      if (k == LIST || k == ITERABLE || k == MAP || k == STREAM || k == ITERATOR) {
+        // A container that declares @TOJSON getters is still a bean
+        p = new BeanPlan(c);
+        if (p.getters.length != 0) {
+          k = BEAN;
+        }
+      }
+      kind = k;
+      if (kind != BEAN) {
+        p = null;
+      } else if (p == null) {
+        p = new BeanPlan(c);
+      }
+      plan = p;
+      immutable = !isLeaf(kind) && c.isAnnotationPresent(IMMUTABLE.class);
+    }
+  }
+
+  private static final ClassValue<ClassInfo> CLASS_INFO = new ClassValue<ClassInfo>() {
+    @Override
+    protected ClassInfo computeValue(Class<?> c) {
+      return new ClassInfo(c);
+    }
+  };
+
+  static ClassInfo classInfo(Class c) {
+    return CLASS_INFO.get(c);
+  }
+
+  /**
+   * Classifies c, checking in the order toJSON has always used.
+   * @param c
+   * @return one of the kind constants
+   */
+  private static int kindOf(Class c) {
+    if (c == Columnar.class) {
+      return COLUMNAR;
+    } else if ((Object[].class).isAssignableFrom(c)) {
+      if ((Byte[].class).isAssignableFrom(c)) {
+        return BOXED_BYTE_ARRAY;
+      } else if ((Character[].class).isAssignableFrom(c)) {
+        return BOXED_CHAR_ARRAY;
+      }
+      return OBJECT_ARRAY;
+    } else if (PRIMITIVEARRAYS.contains(c)) {
+      if (c == byte[].class) {
+        return BYTE_ARRAY;
+      } else if (c == char[].class) {
+        return CHAR_ARRAY;
+      } else if (c == short[].class) {
+        return SHORT_ARRAY;
+      } else if (c == int[].class) {
+        return INT_ARRAY;
+      } else if (c == long[].class) {
+        return LONG_ARRAY;
+      } else if (c == float[].class) {
+        return FLOAT_ARRAY;
+      } else if (c == double[].class) {
+        return DOUBLE_ARRAY;
+      }
+      return BOOLEAN_ARRAY;
+    } else if (String.class.isAssignableFrom(c) || (Character.class).isAssignableFrom(c)) {
+      return STRING;
+    } else if (PRIMITIVES.contains(c) || JSONObject.class.isAssignableFrom(c) || JSONArray.class.isAssignableFrom(c)) {
+      return LITERAL;
+    } else if (ByteBuffer.class.isAssignableFrom(c)) {
+      return BYTE_BUFFER;
+    } else if (InputStream.class.isAssignableFrom(c)) {
+      return INPUT_STREAM;
+    } else if (Future.class.isAssignableFrom(c) || CompletionStage.class.isAssignableFrom(c)) {
+      return FUTURE;
+    } else if (List.class.isAssignableFrom(c) && RandomAccess.class.isAssignableFrom(c)) {
+      return LIST;
+    } else if (Map.class.isAssignableFrom(c)) {
+      return MAP;
+    } else if (Iterable.class.isAssignableFrom(c)) {
+      return ITERABLE;
+    } else if (BaseStream.class.isAssignableFrom(c)) {
+      return STREAM;
+    } else if (Iterator.class.isAssignableFrom(c)) {
+      return ITERATOR;
+    }
+    return BEAN;
+  }
+
+  /**
+   * Turns packed output of numeric primitive arrays on or off for all
+   * values, not just getters marked @TOJSON(packed = true). Clears the
+   * cache of @IMMUTABLE instances when the setting changes.
+   * @param pack
+   */
+  public static void setPackNumericArrays(boolean pack) {
+    if (packNumericArrays != pack) {
+      packNumericArrays = pack;
+      IMMUTABLE_CACHE.clear();
+    }
+  }
+
+  /**
+   * Returns whether numeric primitive arrays are always packed.
+   * @return true if packing is on globally
+   */
+  public static boolean isPackNumericArrays() {
+    return packNumericArrays;
+  }
+
+  /**
+   * Object[] and RandomAccess List values with at least this many elements
+   * are serialized in parallel. 0 (the default) turns parallel mode off.
+   */
+  private static volatile int parallelThreshold = 0;
+
+  /** Pool parallel chunks run on, the common pool unless set. */
+  private static volatile ForkJoinPool parallelPool = null;
+
+  /**
+   * Turns on parallel serialization of large arrays and RandomAccess lists.
+   * Arrays with at least threshold elements are split into chunks that are
+   * serialized on a ForkJoinPool and joined back in order. Cycles are still
+   * cut inside each chunk, but an object shared between elements of
+   * different chunks is written in full by each chunk instead of once.
+   * Clears the cache of @IMMUTABLE instances when the setting changes.
+   * @param threshold minimum element count, 0 to turn parallel mode off
+   */
+  public static void setParallelThreshold(int threshold) {
+    if (parallelThreshold != threshold) {
+      parallelThreshold = threshold;
+      IMMUTABLE_CACHE.clear();
+    }
+  }
+
+  /**
+   * Returns the minimum array size for parallel serialization, 0 if off.
+   * @return threshold
+   */
+  public static int getParallelThreshold() {
+    return parallelThreshold;
+  }
+
+  /**
+   * Sets the ForkJoinPool parallel serialization runs on.
+   * @param pool the pool, or null for ForkJoinPool.commonPool()
+   */
+  public static void setParallelPool(ForkJoinPool pool) {
+    parallelPool = pool;
+  }
+
+  /**
+   * Returns true if an array of size elements should be split up.
+   */
+  static boolean isParallel(int size) {
+    int threshold = parallelThreshold;
+    return threshold > 0 && size >= threshold;
+  }
+
+  static ForkJoinPool parallelPool() {
+    ForkJoinPool pool = parallelPool;
+    return pool != null ? pool : ForkJoinPool.commonPool();
+  }
+
+  /**
+   * Executor that @TOJSON(blocking = true) getters are invoked on, or null
+   * when they are invoked one after the other on the calling thread.
+   */
+  private static volatile Executor blockingGetterExecutor = null;
+
+  /**
+   * Lets the @TOJSON(blocking = true) getters of a bean run concurrently on
+   * executor. When a bean has two or more such getters they are all started
+   * before any of them is waited for; the results are still written in the
+   * declared order, so the output is the same as in sequential mode.
+   * Getters that are not marked blocking always run on the calling thread.
+   * @param executor the executor, or null to go back to sequential mode
+   */
+  public static void setBlockingGetterExecutor(Executor executor) {
+    blockingGetterExecutor = executor;
+  }
+
+  /**
+   * Returns the executor blocking getters run on, null in sequential mode.
+   * @return executor
+   */
+  public static Executor getBlockingGetterExecutor() {
+    return blockingGetterExecutor;
+  }
+
+  /**
+   * Returns a new executor that starts a thread per task, on virtual threads
+   * when the runtime has them (Java 21 and later) and on daemon platform
+   * threads otherwise. Meant to be handed to setBlockingGetterExecutor.
+   * @return executor
+   */
+  public static ExecutorService newThreadPerGetterExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (Exception e) {
+      return Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "agilejson-getter");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+
+  /**
+   * When set, objects are no longer left out of the output when they were
+   * already written elsewhere in the document. Instead every bean and Map
+   * gets an id, written as its first member ("$id":1), and any later
+   * occurrence of it is written as {"$ref":1}, so shared and cyclic
+   * structures come out whole without repeating data. Arrays and
+   * collections are written in full each time they appear (null where one
+   * would contain itself). Large arrays are not split up in parallel in
+   * this mode, as ids are numbered in document order.
+   */
+  private static volatile boolean sharedReferences = false;
+
+  /**
+   * Turns shared reference mode ("$id" and "$ref") on or off.
+   * @param shared
+   */
+  public static void setSharedReferences(boolean shared) {
+    sharedReferences = shared;
+  }
+
+  /**
+   * Returns whether shared reference mode is on.
+   * @return true if repeated objects are written as {"$ref":n}
+   */
+  public static boolean isSharedReferences() {
+    return sharedReferences;
+  }
+
+  /**
+   * An Object[] or List to be written in columnar form.
+   */
+  static final class Columnar {
+    final Object rows;
+
+    Columnar(Object rows) {
+      this.rows = rows;
+    }
+  }
+
+  /**
+   * Marks an Object[] or List of beans to be written in columnar form,
+   * wherever the returned value is serialized: the keys once, then each
+   * bean as an array of its values in the same order,
+   * {"columns":["id","name"],"rows":[[1,"a"],[2,"b"]]}, which saves
+   * repeating every key in every element. A getter can ask for the same
+   * with @TOJSON(columnar = true). Members a bean would leave out (getters
+   * that throw, values already written) are null in its row. When the
+   * non-null elements are not all beans of one class with @TOJSON getters
+   * the array is written as usual.
+   * @param rows an Object[] or List
+   * @return a value to serialize in place of rows
+   */
+  public static Object columnar(Object rows) {
+    return new Columnar(rows);
+  }
+
+  /**
+   * Returns a new alreadyVisited set for a toJSON call: a RefTable in shared
+   * reference mode, a SpecialHashSet otherwise.
+   */
+  static Set newVisitedSet() {
+    return sharedReferences ? new RefTable() : new SpecialHashSet();
+  }
+
+  /**
+   * Sets how many short Strings (up to 32 characters) each thread keeps
+   * the escaped, quoted form of, so that repeated values are copied into the
+   * output instead of being escaped again. Rounded up to a power of two; 0
+   * turns the cache off. The default is 1024.
+   * @param slots
+   */
+  public static void setStringCacheSize(int slots) {
+    StringCache.setSize(slots);
+  }
+
+  /**
+   * Returns the number of String cache slots per thread.
+   * @return slots, 0 when the cache is off
+   */
+  public static int getStringCacheSize() {
+    return StringCache.getSize();
+  }
+
+  /**
+   * Returns how many short Strings were written from the String cache, over
+   * all threads, since the last resetStringCacheStats().
+   * @return hits
+   */
+  public static long getStringCacheHits() {
+    return StringCache.hits();
+  }
+
+  /**
+   * Returns how many short Strings had to be escaped because they were not
+   * in the String cache.
+   * @return misses
+   */
+  public static long getStringCacheMisses() {
+    return StringCache.misses();
+  }
+
+  /**
+   * Sets the String cache hit and miss counts back to 0.
+   */
+  public static void resetStringCacheStats() {
+    StringCache.resetStats();
+  }
+
+  /**
+   * Json of @IMMUTABLE instances; 4M characters unless changed with
+   * setImmutableCacheSize.
+   */
+  static final ImmutableCache IMMUTABLE_CACHE = new ImmutableCache(4L << 20);
+
+  /**
+   * Sets how many characters of Json the cache of @IMMUTABLE instances may
+   * hold in all; least recently used entries are evicted beyond that. A
+   * size of 0 turns the cache off.
+   * @param maxChars
+   */
+  public static void setImmutableCacheSize(long maxChars) {
+    IMMUTABLE_CACHE.setMaxChars(Math.max(0, maxChars));
+  }
+
+  /**
+   * Returns the size limit of the cache of @IMMUTABLE instances.
+   * @return the most characters of Json it holds
+   */
+  public static long getImmutableCacheSize() {
+    return IMMUTABLE_CACHE.getMaxChars();
+  }
+
+  /** Stands in for the value of a getter that threw, so it is skipped. */
+  static final Object SKIPPED = new Object();
+
+  private static Object invokeGetter(Object o, BeanPlan.Getter g) {
+    try {
+      return g.method.invoke(o, ((Object[]) null));
+    } catch (Exception e) {
+      return SKIPPED;
+    }
+  }
+
+  /** Marks a getter value that has not been fetched ahead of time. */
+  private static final Object NOT_INVOKED = new Object();
+
+  /**
+   * Starts every blocking getter of o on executor and waits for all of them.
+   * @param include the getters to invoke, null for all
+   * @return the blocking getters' values by getter index, the other slots
+   * hold NOT_INVOKED
+   */
+  private static Object[] invokeBlockingGetters(Object o, BeanPlan plan, boolean[] include, Executor executor) {
+    BeanPlan.Getter[] getters = plan.getters;
+    CompletableFuture[] pending = new CompletableFuture[getters.length];
+    for (int i = 0; i < getters.length; i++) {
+      if (getters[i].annotation.blocking() && (include == null || include[i])) {
+        BeanPlan.Getter g = getters[i];
+        pending[i] = CompletableFuture.supplyAsync(() -> invokeGetter(o, g), executor);
+      }
+    }
+    Object[] values = new Object[getters.length];
+    for (int i = 0; i < getters.length; i++) {
+      values[i] = pending[i] != null ? pending[i].join() : NOT_INVOKED;
+    }
+    return values;
+  }
+
+  /**
+   * Invokes every getter of o that has not been invoked yet.
+   * @param include the getters to invoke, null for all
+   * @param values values fetched so far, or null
+   * @return all getter values by getter index
+   */
+  private static Object[] invokeAllGetters(Object o, BeanPlan plan, boolean[] include, Object[] values) {
+    BeanPlan.Getter[] getters = plan.getters;
+    if (values == null) {
+      values = new Object[getters.length];
+      Arrays.fill(values, NOT_INVOKED);
+    }
+    for (int i = 0; i < getters.length; i++) {
+      if (values[i] == NOT_INVOKED && (include == null || include[i])) {
+        values[i] = invokeGetter(o, getters[i]);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Fetches the getter values of o that are better fetched together before
+   * any of them is written: the blocking getters when there is an executor
+   * to run them on, and every getter when some of them return futures.
+   * @param include the getters that will be written, null for all of them;
+   * no other getter is invoked
+   * @return the values by getter index, NOT_INVOKED where a getter is left
+   * to getterValue, or null if nothing was fetched
+   */
+  static Object[] prefetchGetters(Object o, BeanPlan plan, boolean[] include) {
+    Executor executor = blockingGetterExecutor;
+    Object[] values = null;
+    if (executor != null && plan.blockingCount > 1) {
+      values = invokeBlockingGetters(o, plan, include, executor);
+    }
+    if (plan.futureCount > 0) {
+      // Start every getter so that all of their futures are pending at
+      // once, then wait for them together.
+      values = invokeAllGetters(o, plan, include, values);
+      awaitFutures(values);
+    }
+    return values;
+  }
+
+  /**
+   * Returns the value of getter i of o, taken from values when it was
+   * prefetched, with any future it returned resolved.
+   * @param values the result of prefetchGetters
+   * @return the value, or SKIPPED if the getter threw or its future failed
+   */
+  static Object getterValue(Object o, BeanPlan plan, Object[] values, int i) {
+    Object value;
+    if (values != null && values[i] != NOT_INVOKED) {
+      value = values[i];
+    } else {
+      value = invokeGetter(o, plan.getters[i]);
+    }
+    if (value instanceof Future || value instanceof CompletionStage) {
+      value = resolveFuture(value);
+    }
+    return value;
+  }
+
+  /**
+   * Waits for a Future or CompletionStage, and for any future it completes
+   * with, and returns the final value.
+   * @param o
+   * @return the value, or SKIPPED if the future failed or was cancelled
+   */
+  static Object resolveFuture(Object o) {
+    while (o instanceof Future || o instanceof CompletionStage) {
+      try {
+        if (o instanceof CompletionStage) {
+          o = ((CompletionStage) o).toCompletableFuture().join();
+        } else {
+          o = ((Future) o).get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return SKIPPED;
+      } catch (ExecutionException e) {
+        return SKIPPED;
+      } catch (RuntimeException e) {
+        // CompletionException, CancellationException
+        return SKIPPED;
+      }
+    }
+    return o;
+  }
+
+  /**
+   * Waits for all of the futures reachable from value together instead of
+   * one at a time as they are written. Futures are looked for in value
+   * itself and inside arrays, Collections and Maps, following the results of
+   * futures that complete; beans are not looked into, as that would mean
+   * invoking their getters twice. Plain Futures that are not CompletionStages
+   * and are still running are left to be waited for when written.
+   * @param value
+   */
+  protected static void awaitFutures(Object value) {
+    List<CompletableFuture> pending = new ArrayList<CompletableFuture>();
+    Set seen = Collections.newSetFromMap(new IdentityHashMap());
+    collectFutures(value, pending, seen);
+    while (!pending.isEmpty()) {
+      CompletableFuture all = CompletableFuture.allOf(pending.toArray(new CompletableFuture[pending.size()]));
+      try {
+        all.join();
+      } catch (RuntimeException e) {
+        // Failures are dealt with one by one when the values are written
+      }
+      List<CompletableFuture> done = pending;
+      pending = new ArrayList<CompletableFuture>();
+      for (int i = 0; i < done.size(); i++) {
+        CompletableFuture f = done.get(i);
+        if (!f.isCompletedExceptionally()) {
+          collectFutures(f.join(), pending, seen);
+        }
+      }
+    }
+  }
+
+  private static void collectFutures(Object value, List<CompletableFuture> pending, Set seen) {
+    // A worklist rather than recursion, so deep nesting can not overflow
+    // the stack.
+    ArrayDeque work = new ArrayDeque();
+    while (true) {
+      if (value != null) {
+        switch (CLASS_INFO.get(value.getClass()).kind) {
+          case FUTURE:
+            if (value instanceof CompletionStage) {
+              CompletableFuture f = ((CompletionStage) value).toCompletableFuture();
+              if (!f.isDone()) {
+                pending.add(f);
+              } else if (!f.isCompletedExceptionally() && seen.add(f)) {
+                work.push(Collections.singleton(f.join()).iterator());
+              }
+            } else {
+              Future f = (Future) value;
+              if (f.isDone() && !f.isCancelled() && seen.add(f)) {
+                try {
+                  work.push(Collections.singleton(f.get()).iterator());
+                } catch (Exception e) {
+                  // Reported when written
+                }
+              }
+            }
+            break;
+          case OBJECT_ARRAY:
+            if (seen.add(value)) {
+              work.push(Arrays.asList((Object[]) value).iterator());
+            }
+            break;
+          case LIST:
+          case ITERABLE:
+            // Other Iterables may only be good for one pass
+            if (value instanceof Collection && seen.add(value)) {
+              work.push(((Collection) value).iterator());
+            }
+            break;
+          case MAP:
+            if (seen.add(value)) {
+              work.push(((Map) value).values().iterator());
+            }
+            break;
+          default:
+            break;
+        }
+      }
+      // Carry on with the next element of the innermost container
+      while (!work.isEmpty() && !((Iterator) work.peek()).hasNext()) {
+        work.pop();
+      }
+      if (work.isEmpty()) {
+        return;
+      }
+      value = ((Iterator) work.peek()).next();
+    }
+  }
+
+
   /**
    * Public interface to protected toJSON method.
    * @param o
@@ -192,10 +819,109 @@ public class JSON {
    * @throws java.lang.IllegalAccessException
    */
   public static String toJSON(Object o) throws JSONException, IllegalAccessException {
-    Set alreadyVisited = new SpecialHashSet();
+    Set alreadyVisited = newVisitedSet();
     return JSON.toJSON(o, alreadyVisited);
   }
 
+  /**
+   * Writes the Json for o straight into out instead of building a String.
+   * Large binary values (ByteBuffer, InputStream) are streamed into out
+   * without an intermediate copy.
+   * @param o
+   * @param out
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException if out can not be written to
+   */
+  public static void toJSON(Object o, Appendable out) throws JSONException, IllegalAccessException, IOException {
+    Set alreadyVisited = newVisitedSet();
+    JSON.toJSON(o, alreadyVisited, out);
+  }
+
+  /**
+   * Returns the Json for the parts of o that projection asks for, e.g.
+   * toJSON(order, Projection.compile("id,items.id,items.price")). Getters
+   * that are not on one of its paths are never invoked.
+   * @param o
+   * @param projection the key paths to write, or null for all of o
+   * @return Json String
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   */
+  public static String toJSON(Object o, Projection projection) throws JSONException, IllegalAccessException {
+    StringBuilder sb = new StringBuilder();
+    try {
+      toJSON(o, projection, sb);
+    } catch (IOException e) {
+      throw new JSONException(e);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes the Json for the parts of o that projection asks for straight
+   * into out.
+   * @param o
+   * @param projection the key paths to write, or null for all of o
+   * @param out
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException if out can not be written to
+   */
+  public static void toJSON(Object o, Projection projection, Appendable out) throws JSONException, IllegalAccessException, IOException {
+    toJSON(o, null, projection, out);
+  }
+
+  /**
+   * Returns the Json for o with its beans written in a @TOJSON view, e.g.
+   * toJSON(orders, "summary"): getters whose views do not include it are
+   * left out without being invoked.
+   * @param o
+   * @param view the view, or null for every getter
+   * @return Json String
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   */
+  public static String toJSON(Object o, String view) throws JSONException, IllegalAccessException {
+    StringBuilder sb = new StringBuilder();
+    try {
+      toJSON(o, view, null, sb);
+    } catch (IOException e) {
+      throw new JSONException(e);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes the Json for o with its beans written in a @TOJSON view
+   * straight into out.
+   * @param o
+   * @param view the view, or null for every getter
+   * @param out
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException if out can not be written to
+   */
+  public static void toJSON(Object o, String view, Appendable out) throws JSONException, IllegalAccessException, IOException {
+    toJSON(o, view, null, out);
+  }
+
+  /**
+   * Writes the Json for the parts of o that projection asks for, with its
+   * beans written in a @TOJSON view, straight into out.
+   * @param o
+   * @param view the view, or null for every getter
+   * @param projection the key paths to write, or null for all of o
+   * @param out
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException if out can not be written to
+   */
+  public static void toJSON(Object o, String view, Projection projection, Appendable out) throws JSONException, IllegalAccessException, IOException {
+    Set alreadyVisited = newVisitedSet();
+    JSONEncoder.write(o, alreadyVisited, out, projection, view);
+  }
+
   /**
    * Escapes all of the characters in the string that according
    * to the javascript standard are able to be escaped.
@@ -211,62 +937,136 @@ public class JSON {
     if (string == null || string.length() == 0) {
       return "";
     }
+    StringBuilder sb = new StringBuilder(string.length() + 16);
+    try {
+      escape(string, sb);
+    } catch (IOException e) {
+      // StringBuilder does not throw
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Same as escape(String) but appends the escaped string to out.
+   * Runs of characters that need no escaping are appended in one call.
+   * @param string
+   * @param out
+   * @throws java.io.IOException
+   */
+  protected static void escape(String string, Appendable out) throws IOException {
+    if (string == null) {
+      return;
+    }
 
     char b;
     char c = 0;
     int i;
     int len = string.length();
-    StringBuffer sb = new StringBuffer(len);
+    int start = 0;
     String t;
 
     for (i = 0; i < len; i += 1) {
       b = c;
       c = string.charAt(i);
+      if (c >= ' ' && c != '\\' && c != '"' && c != '/' && c < '\u0080') {
+        continue;
+      }
+      if (start < i) {
+        out.append(string, start, i);
+      }
+      start = i + 1;
       switch (c) {
         case '\\':
         case '"':
-          sb.append('\\');
-          sb.append(c);
+          out.append('\\');
+          out.append(c);
           break;
         case '/':
           if (b == '<') {
-            sb.append('\\');
+            out.append('\\');
           }
-          sb.append(c);
+          out.append(c);
           break;
         case '\b':
-          sb.append("\\b");
+          out.append("\\b");
           break;
         case '\t':
-          sb.append("\\t");
+          out.append("\\t");
           break;
         case '\n':
-          sb.append("\\n");
+          out.append("\\n");
           break;
         case '\f':
-          sb.append("\\f");
+          out.append("\\f");
           break;
         case '\r':
-          sb.append("\\r");
+          out.append("\\r");
           break;
         default:
           if (c < ' ' || (c >= '\u0080' && c < '\u00a0') ||
             (c >= '\u2000' && c < '\u2100')) {
             t = "000" + Integer.toHexString(c);
-            sb.append("\\u" + t.substring(t.length() - 4));
+            out.append("\\u").append(t, t.length() - 4, t.length());
           } else {
-            sb.append(c);
+            out.append(c);
           }
       }
     }
-    return sb.toString();
+    if (start < len) {
+      out.append(string, start, len);
+    }
+  }
+
+  /**
+   * Packs an int[], long[], float[] or double[] into a small typed envelope:
+   * {"type":"float64","length":3,"data":"..."} where data is the array's raw
+   * little endian bytes in Base64. Compared to the decimal text form this
+   * is around 3x smaller and needs no number formatting or parsing.
+   * @param o
+   * @return the envelope, or null if o is not a numeric primitive array or
+   * is too big to pack
+   */
+  protected static String packArray(Object o) {
+    Class c = o.getClass();
+    String type;
+    int length;
+    ByteBuffer bytes;
+    if (!canPack(o)) {
+      return null;
+    } else if (c == int[].class) {
+      int[] array = (int[]) o;
+      type = "int32";
+      length = array.length;
+      bytes = ByteBuffer.allocate(length * 4).order(ByteOrder.LITTLE_ENDIAN);
+      bytes.asIntBuffer().put(array);
+    } else if (c == long[].class) {
+      long[] array = (long[]) o;
+      type = "int64";
+      length = array.length;
+      bytes = ByteBuffer.allocate(length * 8).order(ByteOrder.LITTLE_ENDIAN);
+      bytes.asLongBuffer().put(array);
+    } else if (c == float[].class) {
+      float[] array = (float[]) o;
+      type = "float32";
+      length = array.length;
+      bytes = ByteBuffer.allocate(length * 4).order(ByteOrder.LITTLE_ENDIAN);
+      bytes.asFloatBuffer().put(array);
+    } else if (c == double[].class) {
+      double[] array = (double[]) o;
+      type = "float64";
+      length = array.length;
+      bytes = ByteBuffer.allocate(length * 8).order(ByteOrder.LITTLE_ENDIAN);
+      bytes.asDoubleBuffer().put(array);
+    } else {
+      return null;
+    }
+    return "{\"type\":\"" + type + "\",\"length\":" + length + ",\"data\":\"" +
+      Base64.encodeBytes(bytes.array(), Base64.DONT_BREAK_LINES) + "\"}";
   }
-  
+
   public static void jsonifyArray(Object o, JSONStringer s, Set alreadyVisited) throws JSONException, IllegalAccessException {
     s.array();
     Object[] array = (Object[]) o;
-    Object _o;
-    Class _c;
     for (int j = 0; j < array.length; j++) {
       s.value(JSON.toJSON(array[j], alreadyVisited));
     }
@@ -274,79 +1074,52 @@ public class JSON {
   }
 
   /**
-   * Note I am assuming your methods are named something like "getObject".
-   * With that in my mind I set the name of the json object to the substring
-   * from 3 to the end, downcasing it, resulting in get being dropped
-   * and the second word capitalization being lowered. So you get
-   * object.
-   * @param o
-   * @param methods 
-   * @param c
-   * @param s
-   * @param alreadyVisited
-   * @return boolean on whether any items were written.
-   * @throws java.lang.IllegalAccessException
-   * @throws org.json.JSONException 
-   */
-  private static boolean jsonifyGetters(Object o, Method[] methods, JSONStringer s, Set alreadyVisited) throws IllegalAccessException, JSONException {
-    boolean anyOutput = false;
-    for (int i = 0; i < methods.length; i++) {
-      TOJSON a;
-      if (methods[i].getParameterTypes().length == 0 && (a = methods[i].getAnnotation(TOJSON.class)) != null) {
-        Object returnValue;
-        try {
-          returnValue = methods[i].invoke(o, ((Object[]) null));
-        } catch (Exception e) {
-          continue;
-        }
-        if(returnValue == null) {
-          if (!anyOutput) {
-            anyOutput = true;
-            s.object();
-          }
-          if (a.fieldName().length() != 0) {
-            s.key(JSON.deCamelCase(a.fieldName()));
-          } else if (a.contentLength() == -1) {
-            s.key(JSON.deCamelCase(methods[i].getName().substring(a.prefixLength())));
-          } else {
-            s.key(JSON.deCamelCase(methods[i].getName().substring(a.prefixLength(), a.prefixLength() + a.contentLength())));
-          }
-          s.value(JSON.toJSON(returnValue, alreadyVisited));         
-        } else {
-        if (!alreadyVisited.contains(returnValue)) {
-          if (!anyOutput) {
-            anyOutput = true;
-            s.object();
-          }
-          if (a.fieldName().length() != 0) {
-            s.key(JSON.deCamelCase(a.fieldName()));
-          } else if (a.contentLength() == -1) {
-            s.key(JSON.deCamelCase(methods[i].getName().substring(a.prefixLength())));
-          } else {
-            s.key(JSON.deCamelCase(methods[i].getName().substring(a.prefixLength(), a.contentLength())));
-          }
-	  
-	  if (a.base64()) {
-          // swap the quotes so they are not encoded in the base64 value
-          String json = JSON.toJSON(returnValue, alreadyVisited);
-            s.value("\""+Base64.encodeBytes(json.substring(1,json.length()-1))+"\"");
-          } else {
-            s.value(JSON.toJSON(returnValue, alreadyVisited));
-          }
-        } else {
-          continue;
-        }
+   * Closes an Iterator value once it has been written, if it holds
+   * something that needs closing.
+   * @throws java.io.IOException
+   */
+  static void closeIterator(Object it) throws IOException {
+    if (it instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) it).close();
+      } catch (IOException e) {
+        throw e;
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
       }
     }
+  }
+
+  /**
+   * Writes a Map key and the colon after it. String keys are escaped,
+   * Number keys are written as their decimal text and any other key as its
+   * escaped toString().
+   */
+  static void mapKey(Object k, Appendable out) throws IOException {
+    out.append('"');
+    if (k instanceof String) {
+      escape((String) k, out);
+    } else if (k instanceof Number) {
+      out.append(k.toString());
+    } else {
+      escape(String.valueOf(k), out);
     }
-    if (anyOutput) {
-      s.endObject();
-    }
-    return anyOutput;
+    out.append("\":");
+  }
+
+  /**
+   * Starts the next member of the Json object written for a bean, opening
+   * the object first if this is its first member.
+   */
+  static void key(String key, boolean first, Appendable out) throws IOException {
+    out.append(first ? '{' : ',');
+    out.append('"').append(key).append("\":");
   }
 
   /**
-   * Work Horse of the library
+   * Builds the Json for o as a String.
    * @param o
    * @param alreadyVisited
    * @return Proper Json String
@@ -354,32 +1127,53 @@ public class JSON {
    * @throws java.lang.IllegalAccessException
    */
   protected static String toJSON(Object o, Set alreadyVisited) throws JSONException, IllegalAccessException {
-
-    // If null return JSON's null value, null
-    if (o == null) {
-      return "null";
+    StringBuilder sb = new StringBuilder();
+    try {
+      JSON.toJSON(o, alreadyVisited, sb);
+    } catch (IOException e) {
+      throw new JSONException(e);
     }
+    return sb.toString();
+  }
 
-    // Get class for reflection purposes
-    Class c = o.getClass();
-
-    // Make sure that given a primitive, it is not added to already visited
-    // This is for two reasons:
-    // 1. Classes are sealed so can not point to other objects.
-    // 2. String, et. al., have overridden equals methods which is true
-    //     given equality of value, not equality of reference.
-    // This results in the loss of values in the json representation
-    if (!PRIMITIVES.contains(c)) {
-      alreadyVisited.add(o);
-    }
+  /**
+   * Work Horse of the library. Writes the Json for o into out, walking the
+   * graph with JSONEncoder's explicit stack rather than recursing.
+   * @param o
+   * @param alreadyVisited
+   * @param out
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException
+   */
+  protected static void toJSON(Object o, Set alreadyVisited, Appendable out) throws JSONException, IllegalAccessException, IOException {
+    JSONEncoder.write(o, alreadyVisited, out);
+  }
 
-    // Use no excape stringer b/c we want to escape strings only once,
-    // to stop things like \\\\\\n, etc.
-    JSONStringer s = new NoEscapesStringer();
+  /**
+   * Returns whether values of the given kind are written in one go, without
+   * looking at anything they refer to.
+   */
+  static boolean isLeaf(int kind) {
+    return kind <= BOOLEAN_ARRAY && kind != OBJECT_ARRAY;
+  }
 
-    // If Array handle elements
-    if ((Object[].class).isAssignableFrom(c)) {
-      if ((Byte[].class).isAssignableFrom(c)) {
+  /**
+   * Writes a value whose kind is a leaf (see isLeaf) into out.
+   * @param o
+   * @param kind
+   * @param out
+   * @throws java.io.IOException
+   */
+  static void writeLeaf(Object o, int kind, Appendable out) throws IOException {
+    switch (kind) {
+      case LITERAL:
+        out.append(o.toString());
+        break;
+      case STRING:
+        quote(o.toString(), out);
+        break;
+      case BOXED_BYTE_ARRAY: {
         Byte[] B = (Byte[]) o;
         byte[] b = new byte[B.length];
         for (int i = 0; i < B.length; i++) {
@@ -388,8 +1182,10 @@ public class JSON {
           else
             b[i] = 48;
         }
-        return "\"" + escape(new String(b)) + "\"";
-      } else if ((Character[].class).isAssignableFrom(c)) {
+        quote(new String(b), out);
+        break;
+      }
+      case BOXED_CHAR_ARRAY: {
         Character[] C = (Character[]) o;
         char[] primitiveC = new char[C.length];
         for (int i = 0; i < C.length; i++) {
@@ -398,78 +1194,108 @@ public class JSON {
           else
             primitiveC[i] = '0';
         }
-        return "\"" + escape(new String(primitiveC)) + "\"";
-      } else {
-        jsonifyArray(o, s, alreadyVisited);
+        quote(new String(primitiveC), out);
+        break;
       }
-    } else {
-      // Check this part
-      if (PRIMITIVEARRAYS.contains(c)) {
-        // If byte/char array return as a string. Otherwise returns
-        // as a space delimited Hex Representation of the bytes
-        if ((byte[].class).isAssignableFrom(c)) {
-          try {
-            return "\"" + escape(new String((byte[]) o, "UTF-8")) + "\"";
-          } catch (UnsupportedEncodingException ex) {
-            return "\"" + escape(new String((byte[]) o)) + "\"";
-          }
-        } else if ((char[].class).isAssignableFrom(c)) {
-          return "\"" + escape(new String((char[]) o)) + "\"";
-        } else {
-          s.array();
-          if ((short[].class).isAssignableFrom(c)) {
-            short[] array = (short[]) o;
-            for (short b : array) {
-              s.value(String.valueOf(b));
-            }
-          } else if ((int[].class).isAssignableFrom(c)) {
-            int[] array = (int[]) o;
-            for (int b : array) {
-              s.value(String.valueOf(b));
-            }
-          } else if ((long[].class).isAssignableFrom(c)) {
-            long[] array = (long[]) o;
-            for (long b : array) {
-              s.value(String.valueOf(b));
-            }
-          } else if ((float[].class).isAssignableFrom(c)) {
-            float[] array = (float[]) o;
-            for (float b : array) {
-              s.value(String.valueOf(b));
-            }
-          } else if ((double[].class).isAssignableFrom(c)) {
-            double[] array = (double[]) o;
-            for (double b : array) {
-              s.value(String.valueOf(b));
-            }
-          } else {
-            boolean[] array = (boolean[]) o;
-            for (boolean b : array) {
-              s.value(String.valueOf(b));
-            }
-          }
-          s.endArray();
+      case BYTE_ARRAY:
+        // byte/char arrays are written as strings
+        try {
+          quote(new String((byte[]) o, "UTF-8"), out);
+        } catch (UnsupportedEncodingException ex) {
+          quote(new String((byte[]) o), out);
         }
-      } else if (String.class.isAssignableFrom(c) || (Character.TYPE).isAssignableFrom(c) || (Character.class).isAssignableFrom(c)) {
-        return '"' + escape(o.toString()) + '"';
-      } else if (PRIMITIVES.contains(c) || JSONObject.class.isAssignableFrom(c) || JSONArray.class.isAssignableFrom(c)) {
-        return o.toString();
-      } else {
-        // Note json object is created inside jsonify getters
-        // this is because we dont know whether or not we have
-        // methods which are annotated as @TOJSON until we get in there.
-        // This allows us to just tostring the output if no methods
-        // have been annotated.
-        Method[] m = c.getMethods();
-        if(m.length != 0) {
-          if(!jsonifyGetters(o,m,s,alreadyVisited)) {
-            return "\"" + escape(o.toString()) + "\"";
-          }
-        } else {
-          return "\"" + escape(o.toString()) + "\"";
+        break;
+      case CHAR_ARRAY:
+        quote(new String((char[]) o), out);
+        break;
+      default:
+        if (isPacked(o, kind)) {
+          out.append(packArray(o));
+          break;
         }
+        out.append('[');
+        writeNumbers(o, kind, 0, Array.getLength(o), out);
+        out.append(']');
+    }
+  }
+
+  /**
+   * Returns whether the numeric array o of the given kind is written packed
+   * because packing is on for all values and o is not too big to pack.
+   */
+  static boolean isPacked(Object o, int kind) {
+    return packNumericArrays && kind >= INT_ARRAY && kind <= DOUBLE_ARRAY && canPack(o);
+  }
+
+  /** The most elements the runtime allocates an array of. */
+  private static final long MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+  /**
+   * Returns whether o, if it is a numeric primitive array, is small enough
+   * that its bytes and their Base64 text both fit in an array. Sizes are
+   * worked out in long, as length * 8 overflows an int for big arrays.
+   */
+  private static boolean canPack(Object o) {
+    Class c = o.getClass();
+    long bytes;
+    if (c == int[].class || c == float[].class) {
+      bytes = Array.getLength(o) * 4L;
+    } else if (c == long[].class || c == double[].class) {
+      bytes = Array.getLength(o) * 8L;
+    } else {
+      return true;
+    }
+    // room for the envelope around the Base64 text
+    return Base64.encodedLength(bytes, Base64.DONT_BREAK_LINES) <= MAX_ARRAY - 64;
+  }
+
+  /**
+   * Writes elements from (inclusive) to to (exclusive) of a short[], int[],
+   * long[], float[], double[] or boolean[] into out, comma separated. A
+   * comma is written first when from is not 0 so that consecutive slices
+   * join up.
+   * @param array
+   * @param kind the kind of array
+   * @param from
+   * @param to
+   * @param out
+   * @throws java.io.IOException
+   */
+  static void writeNumbers(Object array, int kind, int from, int to, Appendable out) throws IOException {
+    for (int i = from; i < to; i++) {
+      if (i > 0) out.append(',');
+      switch (kind) {
+        case SHORT_ARRAY:
+          out.append(String.valueOf(((short[]) array)[i]));
+          break;
+        case INT_ARRAY:
+          out.append(String.valueOf(((int[]) array)[i]));
+          break;
+        case LONG_ARRAY:
+          out.append(String.valueOf(((long[]) array)[i]));
+          break;
+        case FLOAT_ARRAY:
+          out.append(String.valueOf(((float[]) array)[i]));
+          break;
+        case DOUBLE_ARRAY:
+          out.append(String.valueOf(((double[]) array)[i]));
+          break;
+        default:
+          out.append(String.valueOf(((boolean[]) array)[i]));
       }
     }
-    return s.toString();
   }
+
+  /**
+   * Writes s escaped and in double quotes into out.
+   */
+  static void quote(String s, Appendable out) throws IOException {
+    if (s.length() <= StringCache.MAX_LENGTH && StringCache.isEnabled()) {
+      StringCache.quote(s, out);
+      return;
+    }
+    out.append('"');
+    escape(s, out);
+    out.append('"');
   }
+}
@@ -0,0 +1,499 @@
+/**
+ * JSONDelta.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONException;
+
+/**
+ * Sends the changes to an object graph instead of the whole graph each
+ * time, for push channels that send the same large object over and over:
+ *
+ *   JSONDelta delta = new JSONDelta();
+ *   channel.send(delta.diff(dashboard));   // replaces the whole document
+ *   ...
+ *   channel.send(delta.diff(dashboard));   // only what changed
+ *
+ * diff walks the graph with the usual @TOJSON plans and builds a compact
+ * snapshot from it directly (maps for objects, lists for arrays and the
+ * Json text of every other value), without writing the document out as
+ * text, and returns an RFC 6902 JSON Patch that turns the previous
+ * snapshot into the new one. Objects are compared member by member and
+ * arrays element by element, by index; elements added or removed at the
+ * end of an array become add and remove operations, anything that
+ * changes type is replaced. The first call, and the first after reset(),
+ * returns a single replace of the whole document ("path":"").
+ *
+ * A JSONDelta is for one stream of documents and one thread at a time.
+ */
+public class JSONDelta {
+
+  private Object snapshot;
+  private boolean hasSnapshot;
+
+  /**
+   * Serializes o and returns the JSON Patch from the previous call's
+   * document to this one, keeping this one for the next call.
+   * @param o
+   * @return a Json array of patch operations, "[]" when nothing changed
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   */
+  public String diff(Object o) throws JSONException, IllegalAccessException {
+    Object next;
+    try {
+      next = new SnapshotBuilder().build(o);
+    } catch (IOException e) {
+      // StringBuilder does not throw
+      throw new JSONException(e);
+    }
+    StringBuilder patch = new StringBuilder();
+    patch.append('[');
+    if (!hasSnapshot) {
+      operation(patch, "replace", "", next);
+    } else {
+      diff(snapshot, next, patch);
+    }
+    patch.append(']');
+    snapshot = next;
+    hasSnapshot = true;
+    return patch.toString();
+  }
+
+  /**
+   * Returns the Json of the document kept from the last diff.
+   * @return the snapshot, or null before the first diff
+   */
+  public String snapshot() {
+    if (!hasSnapshot) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    write(snapshot, sb);
+    return sb.toString();
+  }
+
+  /**
+   * Forgets the snapshot, so the next diff replaces the whole document.
+   */
+  public void reset() {
+    snapshot = null;
+    hasSnapshot = false;
+  }
+
+  /**
+   * Appends the operations that turn before into after. Pairs of values
+   * still to compare are kept on a work list rather than recursed into.
+   */
+  private static void diff(Object before, Object after, StringBuilder patch) {
+    List<Object> work = new ArrayList<Object>();
+    work.add("");
+    work.add(before);
+    work.add(after);
+    while (!work.isEmpty()) {
+      // entries are (path, before, after) triples
+      int n = work.size();
+      Object now = work.remove(n - 1);
+      Object old = work.remove(n - 2);
+      String path = (String) work.remove(n - 3);
+      if (old instanceof Map && now instanceof Map) {
+        Map oldMap = (Map) old;
+        Map newMap = (Map) now;
+        for (Iterator it = oldMap.keySet().iterator(); it.hasNext(); ) {
+          Object key = it.next();
+          if (!newMap.containsKey(key)) {
+            operation(patch, "remove", path + "/" + pointer((String) key), null);
+          }
+        }
+        for (Iterator it = newMap.entrySet().iterator(); it.hasNext(); ) {
+          Map.Entry e = (Map.Entry) it.next();
+          String child = path + "/" + pointer((String) e.getKey());
+          if (!oldMap.containsKey(e.getKey())) {
+            operation(patch, "add", child, e.getValue());
+          } else {
+            work.add(child);
+            work.add(oldMap.get(e.getKey()));
+            work.add(e.getValue());
+          }
+        }
+      } else if (old instanceof List && now instanceof List) {
+        List oldList = (List) old;
+        List newList = (List) now;
+        int common = Math.min(oldList.size(), newList.size());
+        // Remove from the end first so the indexes stay valid
+        for (int i = oldList.size() - 1; i >= common; i--) {
+          operation(patch, "remove", path + "/" + i, null);
+        }
+        for (int i = common; i < newList.size(); i++) {
+          operation(patch, "add", path + "/" + i, newList.get(i));
+        }
+        for (int i = 0; i < common; i++) {
+          work.add(path + "/" + i);
+          work.add(oldList.get(i));
+          work.add(newList.get(i));
+        }
+      } else if (!(old instanceof String && old.equals(now))) {
+        operation(patch, "replace", path, now);
+      }
+    }
+  }
+
+  private static void operation(StringBuilder patch, String op, String path, Object value) {
+    if (patch.length() > 1) {
+      patch.append(',');
+    }
+    patch.append("{\"op\":\"").append(op).append("\",\"path\":\"");
+    try {
+      JSON.escape(path, patch);
+    } catch (IOException e) {
+      // StringBuilder does not throw
+    }
+    patch.append('"');
+    if (!op.equals("remove")) {
+      patch.append(",\"value\":");
+      write(value, patch);
+    }
+    patch.append('}');
+  }
+
+  /**
+   * Escapes a member name as a JSON Pointer (RFC 6901) reference token.
+   */
+  private static String pointer(String key) {
+    if (key.indexOf('~') < 0 && key.indexOf('/') < 0) {
+      return key;
+    }
+    return key.replace("~", "~0").replace("/", "~1");
+  }
+
+  /**
+   * One object whose node of the snapshot is being filled in.
+   */
+  private static final class Walk {
+    int kind;
+    Object value;
+    /** The Map or List node of value. */
+    Object node;
+    /** The node holding this one and where, null for the root. */
+    Object parent;
+    Object slot;
+    int index;
+    int length;
+    Iterator iterator;
+    BeanPlan plan;
+    Object[] values;
+    boolean any;
+  }
+
+  /**
+   * Builds the snapshot of a document straight from its objects, with the
+   * class plans and the visited set the encoder uses: a node per bean, Map,
+   * array and collection, with a member per getter or entry and an element
+   * per element, so nothing is written out as text and read back. Every
+   * other value (Strings, numbers, streams, binary values, @IMMUTABLE
+   * beans, Base64 encoded, packed and columnar getters) is written by the
+   * encoder against the same visited set and kept as its text. Objects
+   * still to be filled in are kept on an explicit stack. Large arrays are
+   * not split up in parallel.
+   */
+  private static final class SnapshotBuilder {
+    private final Set visited = JSON.newVisitedSet();
+    private final RefTable refs = visited instanceof RefTable ? (RefTable) visited : null;
+    private final List<Walk> stack = new ArrayList<Walk>();
+    private Object root;
+
+    Object build(Object o) throws JSONException, IllegalAccessException, IOException {
+      root = open(o);
+      while (!stack.isEmpty()) {
+        step(stack.get(stack.size() - 1));
+      }
+      return root;
+    }
+
+    /**
+     * Returns the node for o, pushing it to be filled in when it has
+     * members or elements, or o's Json text.
+     */
+    private Object open(Object o) throws JSONException, IllegalAccessException, IOException {
+      if (o == null) {
+        return "null";
+      }
+      JSON.ClassInfo info = JSON.classInfo(o.getClass());
+      int kind = info.kind;
+      boolean container = kind == JSON.OBJECT_ARRAY || kind == JSON.LIST
+        || kind == JSON.ITERABLE || kind == JSON.MAP;
+      boolean bean = kind == JSON.BEAN && !info.immutable && info.plan.getters.length != 0;
+      if (!container && !bean && kind != JSON.FUTURE) {
+        return text(o);
+      }
+      // the same checks, in the same order, as JSONEncoder.value
+      if (refs == null && container && visited.contains(o) && isOpen(o)) {
+        return "null";
+      }
+      if (info.visited) {
+        visited.add(o);
+      }
+      if (refs != null) {
+        if (kind == JSON.BEAN || kind == JSON.MAP) {
+          int id = refs.id(o);
+          if (id != 0) {
+            return "{\"$ref\":" + id + "}";
+          }
+        } else if (container && isOpen(o)) {
+          return "null";
+        }
+      }
+      if (kind == JSON.FUTURE) {
+        Object resolved = JSON.resolveFuture(o);
+        return open(resolved == JSON.SKIPPED ? null : resolved);
+      }
+      Walk w = new Walk();
+      w.kind = kind;
+      w.value = o;
+      switch (kind) {
+        case JSON.OBJECT_ARRAY:
+          w.length = ((Object[]) o).length;
+          w.node = new ArrayList<Object>(w.length);
+          break;
+        case JSON.LIST:
+          w.length = ((List) o).size();
+          w.node = new ArrayList<Object>(w.length);
+          break;
+        case JSON.ITERABLE:
+          w.iterator = ((Iterable) o).iterator();
+          w.node = new ArrayList<Object>();
+          break;
+        case JSON.MAP:
+          w.iterator = ((Map) o).entrySet().iterator();
+          w.node = new LinkedHashMap<String, Object>();
+          if (refs != null) {
+            ((Map) w.node).put("$id", String.valueOf(refs.assign(o)));
+          }
+          break;
+        default:
+          w.plan = info.plan;
+          w.node = new LinkedHashMap<String, Object>();
+          if (refs != null) {
+            ((Map) w.node).put("$id", String.valueOf(refs.assign(o)));
+            w.any = true;
+          }
+          w.values = JSON.prefetchGetters(o, w.plan, null);
+      }
+      stack.add(w);
+      return w.node;
+    }
+
+    /**
+     * Adds the next member or element of the top object, or pops it.
+     */
+    private void step(Walk w) throws JSONException, IllegalAccessException, IOException {
+      switch (w.kind) {
+        case JSON.OBJECT_ARRAY:
+          if (w.index < w.length) {
+            add(w, null, ((Object[]) w.value)[w.index++]);
+            return;
+          }
+          break;
+        case JSON.LIST:
+          if (w.index < w.length) {
+            add(w, null, ((List) w.value).get(w.index++));
+            return;
+          }
+          break;
+        case JSON.ITERABLE:
+          if (w.iterator.hasNext()) {
+            add(w, null, w.iterator.next());
+            return;
+          }
+          break;
+        case JSON.MAP:
+          if (w.iterator.hasNext()) {
+            Map.Entry e = (Map.Entry) w.iterator.next();
+            add(w, String.valueOf(e.getKey()), e.getValue());
+            return;
+          }
+          break;
+        default:
+          if (stepBean(w)) {
+            return;
+          }
+      }
+      stack.remove(stack.size() - 1);
+      if (w.kind == JSON.BEAN && !w.any) {
+        // a bean none of whose getters were written is written as a String
+        StringBuilder sb = new StringBuilder();
+        JSON.quote(w.value.toString(), sb);
+        replace(w, sb.toString());
+      }
+    }
+
+    /**
+     * Adds the next getter of a bean, as JSONEncoder.stepBean does.
+     * @return false once all of them are done
+     */
+    private boolean stepBean(Walk w) throws JSONException, IllegalAccessException, IOException {
+      BeanPlan.Getter[] getters = w.plan.getters;
+      while (w.index < getters.length) {
+        int i = w.index++;
+        Object returnValue = JSON.getterValue(w.value, w.plan, w.values, i);
+        if (returnValue == JSON.SKIPPED) {
+          continue;
+        }
+        String key = getters[i].key;
+        if (returnValue == null) {
+          ((Map) w.node).put(getters[i].nullKey, "null");
+          w.any = true;
+          continue;
+        }
+        if (refs == null && visited.contains(returnValue)) {
+          continue;
+        }
+        w.any = true;
+        TOJSON a = getters[i].annotation;
+        if (a.base64() || a.packed() || a.columnar()) {
+          StringBuilder sb = new StringBuilder();
+          JSONEncoder.writeMember(a, returnValue, visited, sb);
+          ((Map) w.node).put(key, sb.toString());
+          continue;
+        }
+        add(w, key, returnValue);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Adds value to the node of w, under key in a Map node.
+     */
+    private void add(Walk w, String key, Object value) throws JSONException, IllegalAccessException, IOException {
+      int depth = stack.size();
+      Object child = open(value);
+      Object slot;
+      if (key != null) {
+        ((Map) w.node).put(key, child);
+        slot = key;
+      } else {
+        List list = (List) w.node;
+        list.add(child);
+        slot = Integer.valueOf(list.size() - 1);
+      }
+      if (stack.size() > depth) {
+        Walk c = stack.get(depth);
+        c.parent = w.node;
+        c.slot = slot;
+      }
+    }
+
+    /** Puts leaf where the node of w is. */
+    private void replace(Walk w, String leaf) {
+      if (w.parent == null) {
+        root = leaf;
+      } else if (w.parent instanceof Map) {
+        ((Map) w.parent).put(w.slot, leaf);
+      } else {
+        ((List) w.parent).set(((Integer) w.slot).intValue(), leaf);
+      }
+    }
+
+    private boolean isOpen(Object o) {
+      for (int i = 0; i < stack.size(); i++) {
+        if (stack.get(i).value == o) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private String text(Object o) throws JSONException, IllegalAccessException, IOException {
+      StringBuilder sb = new StringBuilder();
+      JSONEncoder.write(o, visited, sb);
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Writes a snapshot value back out as Json, with an explicit stack of
+   * open containers.
+   */
+  private static void write(Object value, StringBuilder out) {
+    List<Iterator> open = new ArrayList<Iterator>();
+    List<Boolean> isMap = new ArrayList<Boolean>();
+    boolean first = true;
+    while (true) {
+      if (value instanceof Map) {
+        out.append('{');
+        open.add(((Map) value).entrySet().iterator());
+        isMap.add(Boolean.TRUE);
+        first = true;
+      } else if (value instanceof List) {
+        out.append('[');
+        open.add(((List) value).iterator());
+        isMap.add(Boolean.FALSE);
+        first = true;
+      } else {
+        out.append((String) value);
+        first = false;
+      }
+      value = null;
+      while (value == null && !open.isEmpty()) {
+        int top = open.size() - 1;
+        Iterator it = open.get(top);
+        boolean map = isMap.get(top).booleanValue();
+        if (!it.hasNext()) {
+          out.append(map ? '}' : ']');
+          open.remove(top);
+          isMap.remove(top);
+          first = false;
+          continue;
+        }
+        if (!first) {
+          out.append(',');
+        }
+        if (map) {
+          Map.Entry e = (Map.Entry) it.next();
+          try {
+            JSON.mapKey(e.getKey(), out);
+          } catch (IOException ex) {
+            // StringBuilder does not throw
+          }
+          value = e.getValue();
+        } else {
+          value = it.next();
+        }
+      }
+      if (value == null) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,1148 @@
+/**
+ * JSONEncoder.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.BaseStream;
+
+import agilejson.special.SpecialHashSet;
+
+import org.json.JSONException;
+
+/**
+ * The serialization engine. It walks the object graph without recursing,
+ * keeping the objects it is in the middle of on an explicit stack of
+ * frames: the array or list and the next index, the iterator, the bean
+ * with its getter plan and next getter index, the binary value and how far
+ * it has been read. Each step writes one element or member (or a slice of
+ * a numeric array, or a block of a binary value) and pushes a frame for it
+ * if it has contents of its own, so nesting depth is bounded by the heap
+ * rather than the thread's stack and costs a few array writes per level.
+ * JSON.toJSON runs the steps to the end straight into its output.
+ *
+ * Created from a root object, an encoder writes the Json into ByteBuffers
+ * a piece at a time instead, for callers such as non-blocking servers that
+ * can only take as many bytes as fit in their socket buffer:
+ *
+ *   JSONEncoder encoder = new JSONEncoder(root);
+ *   boolean more;
+ *   do {
+ *     more = encoder.encode(buffer);
+ *     ... flip and write buffer, wait until the channel is writable ...
+ *   } while (more);
+ *
+ * The output is the same as JSON.toJSON(root) in UTF-8 (or the charset
+ * given). The encoder stops whenever the buffer is full and carries on
+ * from its stack on the next call. Only the text of the current step is
+ * held in memory, not the whole document; a single String or a Base64
+ * encoded (@TOJSON(base64 = true)) value is still rendered in one piece.
+ *
+ * Large arrays are always written sequentially by encode, whatever
+ * JSON.setParallelThreshold says, as any element may be the place where the
+ * output has to stop. Getters are invoked when the encoder reaches them, so
+ * values are read as late as they would be by toJSON. An encoder is for a
+ * single thread and a single pass; close() it if it is abandoned before
+ * the end so that an InputStream, Stream or Iterator being streamed is
+ * closed.
+ */
+public class JSONEncoder implements Closeable {
+
+  /** Stop stepping once this much text is waiting to be encoded. */
+  private static final int STEP_TARGET = 8192;
+
+  /** Room for a few encoded characters, more than any charset needs for one. */
+  private static final int SPILL_SIZE = 16;
+
+  /** Numeric array elements written per step. */
+  private static final int NUMBER_SLICE = 512;
+
+  /**
+   * The kind of a frame under an @IMMUTABLE instance whose Json is being
+   * collected for the cache; not one of JSON's kinds.
+   */
+  private static final int CAPTURE = -1;
+
+  /** @IMMUTABLE instances nested deeper than this are not collected. */
+  private static final int MAX_CAPTURES = 64;
+
+  /** Binary bytes Base64 encoded per step; a multiple of 3 so blocks join. */
+  private static final int BINARY_BLOCK = 57 * 64;
+
+  /**
+   * One object being written. Frames are kept per depth and reused, so a
+   * deep or long document allocates no frames after the first visit to
+   * each depth.
+   */
+  private static final class Frame {
+    int kind;
+    Object value;
+    int index;
+    int length;
+    Iterator iterator;
+    BeanPlan plan;
+    Object[] values;
+    boolean any;
+    ByteBuffer bytes;
+    byte[] block;
+    Set outerVisited;
+    /** Where a capture frame's enclosing text goes. */
+    Appendable outerOut;
+    /** Columnar rows: the bean of the current row and its next column. */
+    Object row;
+    int column;
+    /** The part of the value asked for, null for all of it. */
+    Projection projection;
+    /** The getters of a projected bean or columnar row that are written. */
+    Projection.Selection selection;
+
+    void clear() {
+      outerVisited = null;
+      outerOut = null;
+      projection = null;
+      selection = null;
+      row = null;
+      value = null;
+      iterator = null;
+      plan = null;
+      values = null;
+      bytes = null;
+    }
+  }
+
+  /**
+   * Stacks left behind by finished toJSON calls, one per thread, so that
+   * serializing many values does not allocate a stack and frames each time.
+   * A call takes the stack out while it runs, so a nested call on the same
+   * thread (Base64 encoded getters, parallel chunks run by a waiting
+   * worker) gets a fresh one. Frames are cleared as they are popped, and
+   * only the first MAX_CACHED_FRAMES of a stack are kept, so one very deep
+   * document does not pin a large stack to the thread.
+   */
+  private static final ThreadLocal<Frame[]> STACKS = new ThreadLocal<Frame[]>();
+
+  private static final int MAX_CACHED_FRAMES = 64;
+
+  private final Object root;
+  private Set alreadyVisited;
+  /** alreadyVisited in shared reference mode, null otherwise. */
+  private final RefTable refs;
+  /**
+   * Where steps write their text; pending when encoding into ByteBuffers,
+   * a capture's buffer while an @IMMUTABLE instance is collected.
+   */
+  private Appendable out;
+  /** Large arrays may be split up with ParallelSerializer. */
+  private final boolean parallel;
+  /** The @TOJSON view beans are written in, null for all of their getters. */
+  private final String view;
+  private Frame[] stack;
+  private int depth;
+  /** @IMMUTABLE instances being collected, by the depth of their frame. */
+  private IdentityHashMap<Object, Integer> captures;
+
+  // Only used when encoding into ByteBuffers
+  private CharsetEncoder encoder;
+  private StringBuilder pending;
+  private CharBuffer chars;
+  /** Bytes of a character that did not fit into the caller's buffer. */
+  private ByteBuffer spill;
+  private boolean started;
+  private boolean done;
+
+  /**
+   * Creates an encoder of root into UTF-8.
+   * @param root
+   */
+  public JSONEncoder(Object root) {
+    this(root, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Creates an encoder of root into the given charset. Characters the
+   * charset can not represent are replaced, as String.getBytes does.
+   * @param root
+   * @param charset
+   */
+  public JSONEncoder(Object root, Charset charset) {
+    this.root = root;
+    this.alreadyVisited = JSON.newVisitedSet();
+    this.refs = alreadyVisited instanceof RefTable ? (RefTable) alreadyVisited : null;
+    this.pending = new StringBuilder();
+    this.out = pending;
+    this.parallel = false;
+    this.view = null;
+    this.stack = new Frame[16];
+    this.encoder = charset.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.chars = CharBuffer.allocate(STEP_TARGET * 2);
+    this.spill = ByteBuffer.allocate(SPILL_SIZE);
+    chars.flip();
+    spill.flip();
+  }
+
+  private JSONEncoder(Set alreadyVisited, Appendable out, String view) {
+    this.root = null;
+    this.alreadyVisited = alreadyVisited;
+    this.refs = alreadyVisited instanceof RefTable ? (RefTable) alreadyVisited : null;
+    this.out = out;
+    this.parallel = refs == null;
+    this.view = view;
+    Frame[] cached = STACKS.get();
+    if (cached != null) {
+      STACKS.set(null);
+      this.stack = cached;
+    } else {
+      this.stack = new Frame[16];
+    }
+  }
+
+  /**
+   * Writes the Json for o into out in one go. This is what
+   * JSON.toJSON(Object, Set, Appendable) runs: the same stepping as encode,
+   * straight into out and without stopping, with large arrays split up in
+   * parallel when JSON.setParallelThreshold asks for it. Any InputStream,
+   * Stream or Iterator left open by a failure is closed.
+   * @param o
+   * @param alreadyVisited
+   * @param out
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException
+   */
+  static void write(Object o, Set alreadyVisited, Appendable out) throws JSONException, IllegalAccessException, IOException {
+    write(o, alreadyVisited, out, null, null);
+  }
+
+  /**
+   * Writes the part of o's Json that projection asks for into out, or all
+   * of it if projection is null, with beans written in the given view.
+   * @param o
+   * @param alreadyVisited
+   * @param out
+   * @param projection
+   * @param view a @TOJSON view, or null for all getters
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException
+   */
+  static void write(Object o, Set alreadyVisited, Appendable out, Projection projection, String view) throws JSONException, IllegalAccessException, IOException {
+    JSONEncoder encoder = new JSONEncoder(alreadyVisited, out, view);
+    boolean finished = false;
+    try {
+      encoder.value(o, projection);
+      while (encoder.depth > 0) {
+        encoder.step();
+      }
+      finished = true;
+    } finally {
+      encoder.release(finished);
+    }
+  }
+
+  /**
+   * Writes the value of a getter the way a bean writes it as a member:
+   * Base64 encoded, packed or columnar when a asks for it.
+   * @param a the getter's annotation
+   * @param value the getter's value, not null
+   * @param alreadyVisited
+   * @param out
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException
+   */
+  static void writeMember(TOJSON a, Object value, Set alreadyVisited, Appendable out) throws JSONException, IllegalAccessException, IOException {
+    JSONEncoder encoder = new JSONEncoder(alreadyVisited, out, null);
+    boolean finished = false;
+    try {
+      encoder.member(a, value, null);
+      while (encoder.depth > 0) {
+        encoder.step();
+      }
+      finished = true;
+    } finally {
+      encoder.release(finished);
+    }
+  }
+
+  /**
+   * Closes what an unfinished call left open and gives the stack back to
+   * the thread.
+   */
+  private void release(boolean finished) {
+    if (!finished) {
+      closeQuietly();
+    }
+    Frame[] cached = stack;
+    if (cached.length > MAX_CACHED_FRAMES) {
+      cached = Arrays.copyOf(cached, MAX_CACHED_FRAMES);
+    }
+    STACKS.set(cached);
+  }
+
+  /**
+   * Encodes as much of the Json as fits into buffer's remaining space,
+   * advancing its position.
+   * @param buffer
+   * @return true if there is more to come, false once all of it has been
+   * written
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException if reading a streamed InputStream fails
+   */
+  public boolean encode(ByteBuffer buffer) throws JSONException, IllegalAccessException, IOException {
+    if (spill.hasRemaining() && drainSpill(buffer)) {
+      return true;
+    }
+    while (!done) {
+      boolean last = started && depth == 0;
+      if (chars.hasRemaining() || last) {
+        CoderResult result = encoder.encode(chars, buffer, last);
+        if (result.isOverflow()) {
+          if (buffer.hasRemaining()) {
+            // The next character does not fit in what is left of buffer;
+            // encode it aside and hand over as many of its bytes as fit.
+            spill.clear();
+            encoder.encode(chars, spill, last);
+            spill.flip();
+            drainSpill(buffer);
+          }
+          return true;
+        }
+      }
+      if (last) {
+        if (encoder.flush(buffer).isOverflow()) {
+          return true;
+        }
+        done = true;
+        break;
+      }
+      fill();
+    }
+    return false;
+  }
+
+  /**
+   * Moves as much of spill into buffer as fits.
+   * @return true if buffer filled up before spill was empty
+   */
+  private boolean drainSpill(ByteBuffer buffer) {
+    while (spill.hasRemaining() && buffer.hasRemaining()) {
+      buffer.put(spill.get());
+    }
+    return spill.hasRemaining();
+  }
+
+  /**
+   * Returns whether encode has written all of the Json.
+   * @return true when finished
+   */
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Abandons the encoding, closing any InputStream that is being streamed.
+   * @throws java.io.IOException
+   */
+  @Override
+  public void close() throws IOException {
+    IOException failure = closeQuietly();
+    started = true;
+    done = true;
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Closes the sources of all open frames and pops them.
+   * @return the last failure to close, if any
+   */
+  private IOException closeQuietly() {
+    IOException failure = null;
+    while (depth > 0) {
+      Frame f = stack[--depth];
+      try {
+        closeSource(f.kind, f.value);
+      } catch (IOException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        failure = new IOException(e);
+      }
+      f.clear();
+    }
+    return failure;
+  }
+
+  /**
+   * Steps until there is a good amount of text waiting or the end is
+   * reached, then moves the text into chars behind anything left there (at
+   * most a high surrogate waiting for its pair).
+   */
+  private void fill() throws JSONException, IllegalAccessException, IOException {
+    if (!started) {
+      started = true;
+      value(root, null);
+    }
+    while (depth > 0 && pending.length() < STEP_TARGET) {
+      step();
+    }
+    int length = pending.length();
+    if (chars.remaining() + length > chars.capacity()) {
+      CharBuffer bigger = CharBuffer.allocate(Math.max(chars.remaining() + length, chars.capacity() * 2));
+      bigger.put(chars);
+      chars = bigger;
+    } else {
+      chars.compact();
+    }
+    pending.getChars(0, length, chars.array(), chars.position());
+    chars.position(chars.position() + length);
+    chars.flip();
+    pending.setLength(0);
+  }
+
+  /**
+   * Closes a streamed InputStream, Stream or Iterator once it is finished
+   * with.
+   */
+  private static void closeSource(int kind, Object source) throws IOException {
+    if (kind == JSON.INPUT_STREAM) {
+      ((InputStream) source).close();
+    } else if (kind == JSON.STREAM) {
+      ((BaseStream) source).close();
+    } else if (kind == JSON.ITERATOR) {
+      JSON.closeIterator(source);
+    }
+  }
+
+  private Frame push(int kind, Object value) {
+    if (depth == stack.length) {
+      Frame[] bigger = new Frame[depth * 2];
+      System.arraycopy(stack, 0, bigger, 0, depth);
+      stack = bigger;
+    }
+    Frame f = stack[depth];
+    if (f == null) {
+      f = stack[depth] = new Frame();
+    }
+    depth++;
+    f.kind = kind;
+    f.value = value;
+    f.index = 0;
+    f.any = false;
+    return f;
+  }
+
+  private void pop() {
+    Frame f = stack[--depth];
+    if (f.outerVisited != null) {
+      alreadyVisited = f.outerVisited;
+    }
+    if (f.outerOut != null) {
+      out = f.outerOut;
+    }
+    f.clear();
+  }
+
+  /**
+   * Starts writing o: values that are written in one go are written
+   * straight away, anything else opens and pushes a frame that step()
+   * carries on with. Only the part of o that p asks for is written, all of
+   * it if p is null.
+   */
+  private void value(Object o, Projection p) throws JSONException, IllegalAccessException, IOException {
+    if (o == null) {
+      out.append("null");
+      return;
+    }
+
+    JSON.ClassInfo info = JSON.classInfo(o.getClass());
+    if (refs == null && (isContainer(info.kind) || info.kind == JSON.MAP)
+        && alreadyVisited.contains(o) && isOpen(o)) {
+      // an array, collection or Map inside itself; the ancestors are only
+      // looked through for one that has been written before
+      out.append("null");
+      return;
+    }
+    if (info.visited) {
+      alreadyVisited.add(o);
+    }
+    if (refs != null) {
+      int kind = info.kind;
+      if (kind == JSON.BEAN || kind == JSON.MAP) {
+        int id = refs.id(o);
+        if (id != 0) {
+          out.append("{\"$ref\":").append(String.valueOf(id)).append('}');
+          return;
+        }
+      } else if (isContainer(kind) && isOpen(o)) {
+        // an array or collection inside itself can not be referred to
+        out.append("null");
+        return;
+      }
+    }
+    if (info.immutable && p == null && view == null && refs == null && JSON.IMMUTABLE_CACHE.getMaxChars() > 0) {
+      ImmutableCache.Entry cached = JSON.IMMUTABLE_CACHE.get(o);
+      if (cached != null && !anyVisited(cached.visited)) {
+        for (int i = 0; i < cached.visited.length; i++) {
+          alreadyVisited.add(cached.visited[i]);
+        }
+        out.append(cached.json);
+        return;
+      }
+      // o inside its own Json is written again without being collected, and
+      // so is any instance nested too deep to be worth copying up each level
+      if (captures == null || (!captures.containsKey(o) && captures.size() < MAX_CAPTURES)) {
+        capture(o);
+      }
+    }
+    open(o, info, p);
+  }
+
+  /**
+   * Returns whether any of the objects a cached instance visited has been
+   * written already, in which case the instance is written afresh.
+   */
+  private boolean anyVisited(Object[] visited) {
+    for (int i = 0; i < visited.length; i++) {
+      if (alreadyVisited.contains(visited[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Pushes a frame that collects the Json of the @IMMUTABLE instance o in
+   * a buffer of its own, while a CaptureSet notes what it visits. When the
+   * frame is reached again the text is copied into the enclosing output,
+   * and cached unless it depended on objects written before o.
+   */
+  private void capture(Object o) {
+    if (captures == null) {
+      captures = new IdentityHashMap<Object, Integer>();
+    }
+    captures.put(o, depth);
+    Frame f = push(CAPTURE, o);
+    f.outerOut = out;
+    f.outerVisited = alreadyVisited;
+    f.index = JSON.IMMUTABLE_CACHE.generation();
+    alreadyVisited = new CaptureSet(alreadyVisited, o);
+    out = new StringBuilder();
+  }
+
+  /**
+   * Closes the capture frame f: caches its text if it is the same wherever
+   * it is written and copies it into the enclosing output.
+   */
+  private void endCapture(Frame f) throws IOException {
+    String json = out.toString();
+    Object o = f.value;
+    CaptureSet visited = (CaptureSet) alreadyVisited;
+    captures.remove(o);
+    pop();
+    if (!visited.dependent) {
+      JSON.IMMUTABLE_CACHE.put(o, json, visited.visited(), f.index);
+    }
+    out.append(json);
+  }
+
+  /**
+   * alreadyVisited while an @IMMUTABLE instance is collected. Everything
+   * goes through to the enclosing set, so the Json is the same as without
+   * the cache. The set also notes the objects the instance adds, and
+   * whether a lookup found an object visited before the instance started,
+   * which makes the Json depend on what was written before it.
+   */
+  private static final class CaptureSet extends AbstractSet {
+    private static final Object[] NONE = new Object[0];
+
+    private final Set outer;
+    private final Object root;
+    private final Set added = new SpecialHashSet();
+    /** Set from the threads of parallel chunks too, read after they end. */
+    boolean dependent;
+
+    CaptureSet(Set outer, Object root) {
+      this.outer = outer;
+      this.root = root;
+      added.add(root);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (added.contains(o)) {
+        return true;
+      }
+      if (outer.contains(o)) {
+        dependent = true;
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public boolean add(Object o) {
+      added.add(o);
+      return outer.add(o);
+    }
+
+    @Override
+    public int size() {
+      return outer.size();
+    }
+
+    @Override
+    public Iterator iterator() {
+      return outer.iterator();
+    }
+
+    /** Returns the objects added other than the instance itself. */
+    Object[] visited() {
+      added.remove(root);
+      return added.isEmpty() ? NONE : added.toArray();
+    }
+  }
+
+  private static boolean isContainer(int kind) {
+    return kind == JSON.OBJECT_ARRAY || kind == JSON.LIST || kind == JSON.ITERABLE
+      || kind == JSON.STREAM || kind == JSON.ITERATOR;
+  }
+
+  /** Returns whether o is being written by one of the open frames. */
+  private boolean isOpen(Object o) {
+    for (int i = 0; i < depth; i++) {
+      if (stack[i].value == o) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes o, which is not null and has been marked visited, or opens a
+   * frame for it. Containers pass p on to their elements.
+   */
+  private void open(Object o, JSON.ClassInfo info, Projection p) throws JSONException, IllegalAccessException, IOException {
+    int kind = info.kind;
+    switch (kind) {
+      case JSON.OBJECT_ARRAY: {
+        int length = ((Object[]) o).length;
+        if (parallel && JSON.isParallel(length)) {
+          ParallelSerializer.writeArray(o, length, JSON.parallelPool(), out, alreadyVisited, p, view);
+          break;
+        }
+        out.append('[');
+        Frame f = push(kind, o);
+        f.length = length;
+        f.projection = p;
+        break;
+      }
+      case JSON.LIST: {
+        int length = ((List) o).size();
+        if (parallel && JSON.isParallel(length)) {
+          ParallelSerializer.writeArray(o, length, JSON.parallelPool(), out, alreadyVisited, p, view);
+          break;
+        }
+        out.append('[');
+        Frame f = push(kind, o);
+        f.length = length;
+        f.projection = p;
+        break;
+      }
+      case JSON.ITERABLE: {
+        out.append('[');
+        Frame f = push(kind, o);
+        f.iterator = ((Iterable) o).iterator();
+        f.projection = p;
+        break;
+      }
+      case JSON.STREAM:
+      case JSON.ITERATOR: {
+        out.append('[');
+        Frame f = push(kind, o);
+        f.iterator = kind == JSON.STREAM ? ((BaseStream) o).iterator() : (Iterator) o;
+        f.projection = p;
+        if (refs == null) {
+          // Elements are written against a LayeredSet, so their objects are
+          // not all kept; ids have to be kept, so not in shared mode
+          f.outerVisited = alreadyVisited;
+          alreadyVisited = new LayeredSet(alreadyVisited);
+        }
+        break;
+      }
+      case JSON.MAP: {
+        out.append('{');
+        Frame f = push(kind, o);
+        f.iterator = ((Map) o).entrySet().iterator();
+        f.projection = p;
+        if (refs != null) {
+          out.append("\"$id\":").append(String.valueOf(refs.assign(o)));
+          f.index = 1;
+        }
+        break;
+      }
+      case JSON.BYTE_BUFFER:
+        out.append('"');
+        push(kind, o).bytes = ((ByteBuffer) o).duplicate();
+        break;
+      case JSON.INPUT_STREAM: {
+        out.append('"');
+        Frame f = push(kind, o);
+        if (f.block == null) {
+          f.block = new byte[BINARY_BLOCK];
+        }
+        break;
+      }
+      case JSON.COLUMNAR:
+        openColumnar(((JSON.Columnar) o).rows, p);
+        break;
+      case JSON.FUTURE: {
+        awaitSiblings();
+        Object resolved = JSON.resolveFuture(o);
+        value(resolved == JSON.SKIPPED ? null : resolved, p);
+        break;
+      }
+      case JSON.BEAN: {
+        BeanPlan plan = info.plan;
+        if (plan.getters.length == 0) {
+          JSON.quote(o.toString(), out);
+          break;
+        }
+        if (view != null) {
+          plan = plan.view(view);
+        }
+        Frame f = push(kind, o);
+        f.plan = plan;
+        if (refs != null) {
+          out.append("{\"$id\":").append(String.valueOf(refs.assign(o)));
+          f.any = true;
+        }
+        if (p != null) {
+          f.selection = p.select(plan);
+        }
+        f.values = JSON.prefetchGetters(o, plan, f.selection == null ? null : f.selection.include);
+        break;
+      }
+      case JSON.SHORT_ARRAY:
+      case JSON.INT_ARRAY:
+      case JSON.LONG_ARRAY:
+      case JSON.FLOAT_ARRAY:
+      case JSON.DOUBLE_ARRAY:
+      case JSON.BOOLEAN_ARRAY:
+        if (!JSON.isPacked(o, kind) && Array.getLength(o) > NUMBER_SLICE) {
+          out.append('[');
+          push(kind, o).length = Array.getLength(o);
+          break;
+        }
+        JSON.writeLeaf(o, kind, out);
+        break;
+      default:
+        JSON.writeLeaf(o, kind, out);
+    }
+  }
+
+  /**
+   * Called on meeting a future inside an array, List, Collection or Map:
+   * waits for the futures among all of the elements still to be written
+   * together, once per container, so that their latencies overlap instead
+   * of adding up one element at a time. Documents without futures are not
+   * walked twice.
+   */
+  private void awaitSiblings() {
+    if (depth == 0) {
+      return;
+    }
+    Frame f = stack[depth - 1];
+    if (f.any) {
+      return;
+    }
+    switch (f.kind) {
+      case JSON.OBJECT_ARRAY:
+        f.any = true;
+        JSON.awaitFutures(Arrays.asList((Object[]) f.value).subList(f.index - 1, f.length));
+        break;
+      case JSON.LIST:
+        f.any = true;
+        JSON.awaitFutures(((List) f.value).subList(f.index - 1, f.length));
+        break;
+      case JSON.ITERABLE:
+        if (f.value instanceof Collection) {
+          f.any = true;
+          JSON.awaitFutures(f.value);
+        }
+        break;
+      case JSON.MAP:
+        f.any = true;
+        JSON.awaitFutures(((Map) f.value).values());
+        break;
+    }
+  }
+
+  /**
+   * Writes the next element, member or slice of the top frame, or closes
+   * it and pops it if it has none left.
+   */
+  private void step() throws JSONException, IllegalAccessException, IOException {
+    Frame f = stack[depth - 1];
+    switch (f.kind) {
+      case JSON.OBJECT_ARRAY:
+        if (f.index < f.length) {
+          if (f.index > 0) {
+            out.append(',');
+          }
+          value(((Object[]) f.value)[f.index++], f.projection);
+        } else {
+          out.append(']');
+          pop();
+        }
+        break;
+      case JSON.LIST:
+        if (f.index < f.length) {
+          if (f.index > 0) {
+            out.append(',');
+          }
+          value(((List) f.value).get(f.index++), f.projection);
+        } else {
+          out.append(']');
+          pop();
+        }
+        break;
+      case JSON.ITERABLE:
+      case JSON.STREAM:
+      case JSON.ITERATOR:
+        if (f.iterator.hasNext()) {
+          if (f.index++ > 0) {
+            out.append(',');
+          }
+          if (f.outerVisited != null) {
+            ((LayeredSet) alreadyVisited).nextLayer();
+          }
+          value(f.iterator.next(), f.projection);
+        } else {
+          out.append(']');
+          Object source = f.value;
+          int kind = f.kind;
+          pop();
+          closeSource(kind, source);
+        }
+        break;
+      case JSON.MAP:
+        if (f.iterator.hasNext()) {
+          Map.Entry e = (Map.Entry) f.iterator.next();
+          Projection child = null;
+          if (f.projection != null) {
+            child = f.projection.child(String.valueOf(e.getKey()));
+            if (child == null) {
+              break;
+            }
+            if (child == Projection.ALL) {
+              child = null;
+            }
+          }
+          if (f.index++ > 0) {
+            out.append(',');
+          }
+          JSON.mapKey(e.getKey(), out);
+          value(e.getValue(), child);
+        } else {
+          out.append('}');
+          pop();
+        }
+        break;
+      case JSON.BYTE_BUFFER: {
+        ByteBuffer bytes = f.bytes;
+        if (bytes.hasRemaining()) {
+          ByteBuffer block = bytes.duplicate();
+          block.limit(block.position() + Math.min(BINARY_BLOCK, block.remaining()));
+          Base64.encode(block, out, Base64.DONT_BREAK_LINES);
+          bytes.position(block.limit());
+        } else {
+          out.append('"');
+          pop();
+        }
+        break;
+      }
+      case JSON.INPUT_STREAM:
+        stepStream(f);
+        break;
+      case JSON.BEAN:
+        stepBean(f);
+        break;
+      case JSON.COLUMNAR:
+        stepRow(f);
+        break;
+      case CAPTURE:
+        endCapture(f);
+        break;
+      default: {
+        // a numeric array too long to write in one step
+        int to = Math.min(f.length, f.index + NUMBER_SLICE);
+        JSON.writeNumbers(f.value, f.kind, f.index, to, out);
+        f.index = to;
+        if (to == f.length) {
+          out.append(']');
+          pop();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads and encodes the next block of a streamed InputStream, closing it
+   * once it is used up.
+   */
+  private void stepStream(Frame f) throws IOException {
+    InputStream in = (InputStream) f.value;
+    byte[] block = f.block;
+    // Fill the block completely so that only the last one is short.
+    int len = 0;
+    int n = 0;
+    while (len < block.length && (n = in.read(block, len, block.length - len)) >= 0) {
+      len += n;
+    }
+    if (len > 0) {
+      Base64.encode(ByteBuffer.wrap(block, 0, len), out, Base64.DONT_BREAK_LINES);
+    }
+    if (n < 0) {
+      out.append('"');
+      pop();
+      closeSource(JSON.INPUT_STREAM, in);
+    }
+  }
+
+  /**
+   * Writes a getter's value, which is not null, as its annotation asks,
+   * projected by p.
+   */
+  private void member(TOJSON a, Object returnValue, Projection p) throws JSONException, IllegalAccessException, IOException {
+    String packed;
+    if (a.base64()) {
+      // swap the quotes so they are not encoded in the base64 value
+      StringBuilder sb = new StringBuilder();
+      write(returnValue, alreadyVisited, sb, p, view);
+      String json = sb.toString();
+      out.append('"').append(Base64.encodeBytes(json.substring(1,json.length()-1))).append('"');
+    } else if (a.packed() && (packed = JSON.packArray(returnValue)) != null) {
+      alreadyVisited.add(returnValue);
+      out.append(packed);
+    } else if (a.columnar() && (returnValue instanceof Object[] || returnValue instanceof List)) {
+      openColumnar(returnValue, p);
+    } else {
+      value(returnValue, p);
+    }
+  }
+
+  /**
+   * Starts writing an Object[] or List in columnar form, the keys of the
+   * shared plan once and then a frame of rows, or writes it as a normal
+   * array if its elements are not beans of a single class. With p only the
+   * columns it asks for are written.
+   */
+  private void openColumnar(Object rows, Projection p) throws JSONException, IllegalAccessException, IOException {
+    List list = rows instanceof Object[] ? Arrays.asList((Object[]) rows) : rows instanceof List ? (List) rows : null;
+    BeanPlan plan = list == null ? null : commonPlan(list);
+    if (plan == null) {
+      value(rows, p);
+      return;
+    }
+    if (view != null) {
+      plan = plan.view(view);
+    }
+    alreadyVisited.add(rows);
+    BeanPlan.Getter[] getters = plan.getters;
+    Projection.Selection selection = p == null ? null : p.select(plan);
+    out.append("{\"columns\":[");
+    boolean first = true;
+    for (int i = 0; i < getters.length; i++) {
+      if (selection != null && !selection.include[i]) {
+        continue;
+      }
+      if (!first) {
+        out.append(',');
+      }
+      first = false;
+      out.append('"').append(getters[i].key).append('"');
+    }
+    out.append("],\"rows\":[");
+    Frame f = push(JSON.COLUMNAR, list);
+    f.plan = plan;
+    f.selection = selection;
+    f.length = list.size();
+    f.column = -1;
+  }
+
+  /**
+   * Returns the plan of the class every non-null element of list belongs
+   * to, or null if they are not all beans of one class with @TOJSON getters.
+   */
+  private static BeanPlan commonPlan(List list) {
+    Class c = null;
+    for (int i = 0, n = list.size(); i < n; i++) {
+      Object row = list.get(i);
+      if (row == null) {
+        continue;
+      }
+      if (c == null) {
+        c = row.getClass();
+      } else if (row.getClass() != c) {
+        return null;
+      }
+    }
+    if (c == null) {
+      return null;
+    }
+    JSON.ClassInfo info = JSON.classInfo(c);
+    if (info.kind != JSON.BEAN || info.plan.getters.length == 0) {
+      return null;
+    }
+    return info.plan;
+  }
+
+  /**
+   * Writes the next cell of a columnar array: starts the next row, writes
+   * one of its values, or closes it. Values a bean would leave out are
+   * written as null so the columns line up.
+   */
+  private void stepRow(Frame f) throws JSONException, IllegalAccessException, IOException {
+    BeanPlan.Getter[] getters = f.plan.getters;
+    if (f.column < 0) {
+      if (f.index == f.length) {
+        out.append("]}");
+        pop();
+        return;
+      }
+      if (f.index > 0) {
+        out.append(',');
+      }
+      Object row = ((List) f.value).get(f.index);
+      if (row == null) {
+        out.append("null");
+        f.index++;
+        return;
+      }
+      alreadyVisited.add(row);
+      out.append('[');
+      f.row = row;
+      f.values = JSON.prefetchGetters(row, f.plan, f.selection == null ? null : f.selection.include);
+      f.column = 0;
+      f.any = false;
+      return;
+    }
+    Projection.Selection selection = f.selection;
+    if (selection != null) {
+      while (f.column < getters.length && !selection.include[f.column]) {
+        f.column++;
+      }
+    }
+    if (f.column == getters.length) {
+      out.append(']');
+      f.row = null;
+      f.values = null;
+      f.column = -1;
+      f.index++;
+      return;
+    }
+    int i = f.column++;
+    if (f.any) {
+      out.append(',');
+    }
+    f.any = true;
+    Object returnValue = JSON.getterValue(f.row, f.plan, f.values, i);
+    if (returnValue == null || returnValue == JSON.SKIPPED
+        || (refs == null && alreadyVisited.contains(returnValue))) {
+      out.append("null");
+    } else {
+      member(getters[i].annotation, returnValue, selection == null ? null : selection.children[i]);
+    }
+  }
+
+  /**
+   * Writes the next member of a bean, skipping getters outside its
+   * projection or view, getters that threw or, unless in shared reference mode,
+   * getters whose value was already visited. After the
+   * last getter the object is closed, or the bean is written as its
+   * toString() if none of its getters produced a member.
+   */
+  private void stepBean(Frame f) throws JSONException, IllegalAccessException, IOException {
+    Object o = f.value;
+    BeanPlan.Getter[] getters = f.plan.getters;
+    Projection.Selection selection = f.selection;
+    while (f.index < getters.length) {
+      int i = f.index++;
+      if (selection != null && !selection.include[i]) {
+        continue;
+      }
+      Object returnValue = JSON.getterValue(o, f.plan, f.values, i);
+      if (returnValue == JSON.SKIPPED) {
+        continue;
+      }
+      if (returnValue == null) {
+        JSON.key(getters[i].nullKey, !f.any, out);
+        f.any = true;
+        out.append("null");
+        return;
+      }
+      if (refs == null && alreadyVisited.contains(returnValue)) {
+        continue;
+      }
+      JSON.key(getters[i].key, !f.any, out);
+      f.any = true;
+      member(getters[i].annotation, returnValue, selection == null ? null : selection.children[i]);
+      return;
+    }
+    boolean any = f.any;
+    boolean projected = selection != null || f.plan.partial;
+    pop();
+    if (any) {
+      out.append('}');
+    } else if (projected) {
+      // the projection or view took none of its members
+      out.append("{}");
+    } else {
+      JSON.quote(o.toString(), out);
+    }
+  }
+}
@@ -0,0 +1,251 @@
+/**
+ * JSONPublisher.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns a Flow.Publisher of objects into a Flow.Publisher of UTF-8 encoded
+ * ByteBuffers holding either one Json array of all of the objects, or
+ * newline delimited Json (NDJSON) with one object per line.
+ *
+ * Every object is serialized on its own with JSON.toJSON as it arrives and
+ * handed on as one buffer ("[" or "," is put in front of it in array mode,
+ * "\n" after it in NDJSON mode). The closing "]" of the array is added to
+ * the last object's buffer if that is still waiting for demand when the
+ * source completes, and is a buffer of its own otherwise. Buffers already
+ * made are delivered before an error is passed on. Demand is passed upstream one for one, so no more objects are in flight
+ * than the subscriber asked for and memory use does not grow with the number
+ * of objects. Each subscribe() subscribes to the source once.
+ */
+public class JSONPublisher implements Flow.Publisher<ByteBuffer> {
+
+  private final Flow.Publisher<?> source;
+  private final boolean ndjson;
+
+  private JSONPublisher(Flow.Publisher<?> source, boolean ndjson) {
+    if (source == null) {
+      throw new NullPointerException("source");
+    }
+    this.source = source;
+    this.ndjson = ndjson;
+  }
+
+  /**
+   * Publishes the objects of source as one Json array.
+   * @param source
+   * @return publisher of the array's bytes
+   */
+  public static JSONPublisher array(Flow.Publisher<?> source) {
+    return new JSONPublisher(source, false);
+  }
+
+  /**
+   * Publishes the objects of source as NDJSON, one document per line.
+   * @param source
+   * @return publisher of the lines' bytes
+   */
+  public static JSONPublisher ndjson(Flow.Publisher<?> source) {
+    return new JSONPublisher(source, true);
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("subscriber");
+    }
+    source.subscribe(new Bridge(subscriber, ndjson));
+  }
+
+  /**
+   * Subscribes upstream on behalf of one downstream subscriber. Everything
+   * sent downstream goes through drain(), which only one thread runs at a
+   * time, so signals stay serialized whichever thread requests or completes.
+   */
+  private static final class Bridge implements Flow.Subscriber<Object>, Flow.Subscription {
+    private static final ByteBuffer OPEN_CLOSE = utf8("[]");
+    private static final ByteBuffer CLOSE = utf8("]");
+
+    private final Flow.Subscriber<? super ByteBuffer> downstream;
+    private final boolean ndjson;
+    private final Queue<ByteBuffer> ready = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final StringBuilder buffer = new StringBuilder();
+    private volatile Flow.Subscription upstream;
+    private volatile boolean done;
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+    /** The end of the array still to be sent, set before done. */
+    private volatile ByteBuffer close;
+    private boolean first = true;
+    private boolean terminated;
+
+    Bridge(Flow.Subscriber<? super ByteBuffer> downstream, boolean ndjson) {
+      this.downstream = downstream;
+      this.ndjson = ndjson;
+    }
+
+    private static ByteBuffer utf8(String s) {
+      return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      if (upstream != null) {
+        subscription.cancel();
+        return;
+      }
+      upstream = subscription;
+      downstream.onSubscribe(this);
+    }
+
+    @Override
+    public void onNext(Object item) {
+      if (done || cancelled) {
+        return;
+      }
+      // onNext calls are serialized by the upstream publisher, so the
+      // shared buffer and the first flag need no locking.
+      buffer.setLength(0);
+      if (!ndjson) {
+        buffer.append(first ? '[' : ',');
+      }
+      first = false;
+      try {
+        JSON.toJSON(item, buffer);
+      } catch (Exception e) {
+        upstream.cancel();
+        onError(e);
+        return;
+      }
+      if (ndjson) {
+        buffer.append('\n');
+      }
+      ready.offer(ByteBuffer.wrap(buffer.toString().getBytes(StandardCharsets.UTF_8)));
+      drain();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      if (done) {
+        return;
+      }
+      error = t;
+      done = true;
+      drain();
+    }
+
+    @Override
+    public void onComplete() {
+      if (done) {
+        return;
+      }
+      if (!ndjson) {
+        close = (first ? OPEN_CLOSE : CLOSE).duplicate();
+      }
+      done = true;
+      drain();
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        upstream.cancel();
+        onError(new IllegalArgumentException("non-positive request: " + n));
+        return;
+      }
+      long current;
+      long next;
+      do {
+        current = demand.get();
+        next = current + n;
+        if (next < 0) {
+          next = Long.MAX_VALUE;
+        }
+      } while (!demand.compareAndSet(current, next));
+      upstream.request(n);
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      upstream.cancel();
+      ready.clear();
+    }
+
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      do {
+        while (!cancelled && !terminated) {
+          if (ready.isEmpty()) {
+            if (!done) {
+              break;
+            }
+            Throwable t = error;
+            ByteBuffer c = close;
+            if (t != null) {
+              terminated = true;
+              downstream.onError(t);
+            } else if (c == null) {
+              terminated = true;
+              downstream.onComplete();
+            } else if (demand.get() != 0) {
+              close = null;
+              demand.decrementAndGet();
+              downstream.onNext(c);
+              continue;
+            }
+            break;
+          }
+          if (demand.get() == 0) {
+            break;
+          }
+          ByteBuffer b = ready.poll();
+          if (done && ready.isEmpty() && error == null && close != null) {
+            // the last object: send the end of the array along with it
+            b = ByteBuffer.allocate(b.remaining() + close.remaining()).put(b).put(close);
+            b.flip();
+            close = null;
+          }
+          demand.decrementAndGet();
+          downstream.onNext(b);
+        }
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+  }
+}
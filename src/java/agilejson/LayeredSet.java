@@ -0,0 +1,107 @@
+/**
+ * LayeredSet.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import agilejson.special.SpecialHashSet;
+
+/**
+ * An alreadyVisited set for the elements of a Stream or Iterator. Lookups
+ * see the objects visited before the stream was reached (its ancestors
+ * among them, so cycles are still cut), while objects visited while writing
+ * an element go into a layer of its own that is cleared before the next
+ * element. That way memory does not grow with the number of elements, at
+ * the cost of writing an object shared by two elements in both of them.
+ * The parent is not changed, so several LayeredSets may share one parent
+ * across threads while nothing else writes to it.
+ */
+final class LayeredSet extends AbstractSet {
+
+  private final Set parent;
+  private final Set local = new SpecialHashSet();
+
+  LayeredSet(Set parent) {
+    this.parent = parent;
+  }
+
+  /** Returns the objects visited in this layer, without the parent's. */
+  Set layer() {
+    return local;
+  }
+
+  /** Forgets the objects visited since the last call. */
+  void nextLayer() {
+    if (!local.isEmpty()) {
+      local.clear();
+    }
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return local.contains(o) || parent.contains(o);
+  }
+
+  @Override
+  public boolean add(Object o) {
+    if (parent.contains(o)) {
+      return false;
+    }
+    return local.add(o);
+  }
+
+  @Override
+  public int size() {
+    return parent.size() + local.size();
+  }
+
+  @Override
+  public Iterator iterator() {
+    final Iterator first = parent.iterator();
+    final Iterator second = local.iterator();
+    return new Iterator() {
+      public boolean hasNext() {
+        return first.hasNext() || second.hasNext();
+      }
+
+      public Object next() {
+        if (first.hasNext()) {
+          return first.next();
+        } else if (second.hasNext()) {
+          return second.next();
+        }
+        throw new NoSuchElementException();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
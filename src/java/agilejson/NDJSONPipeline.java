@@ -0,0 +1,532 @@
+/**
+ * NDJSONPipeline.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.stream.BaseStream;
+
+import org.json.JSONException;
+
+/**
+ * Writes records as newline delimited Json on several threads while
+ * keeping their order, for exports that one thread can not serialize as
+ * fast as the output can take them:
+ *
+ *   try (NDJSONPipeline pipeline = new NDJSONPipeline(out, 8, 4096)) {
+ *     pipeline.writeAll(records);
+ *   }
+ *
+ * Records go into a ring of slots as deep as the queue depth. The caller
+ * blocks while every slot is taken. Worker threads take records from the
+ * ring, each with its own alreadyVisited set and buffers. A worker
+ * serializes a record into its slot's byte buffer; the buffer stays with
+ * the slot and is reused by later records. A single writer thread takes
+ * the slots in input order and copies their bytes into large writes to
+ * out. The output is the same as an NDJSONWriter's.
+ *
+ * If a record fails to serialize or out fails, nothing more is written.
+ * The failure is thrown by the next write or by close(), and records
+ * still in the ring are dropped. Getters run on the worker threads. Only
+ * one thread may call write and close.
+ */
+public class NDJSONPipeline implements AutoCloseable {
+
+  /** Bytes the writer collects before handing them to out. */
+  private static final int WRITE_SIZE = 64 * 1024;
+
+  /**
+   * A slot's buffer that one large record grew past this is replaced by a
+   * small one once the record is written, so the ring does not keep the
+   * largest line it has seen in every slot.
+   */
+  private static final int MAX_KEPT_BUFFER = 64 * 1024;
+
+  private static final int INITIAL_BUFFER = 256;
+
+  /**
+   * One place in the ring: the record, then its encoded line or the
+   * failure to serialize it.
+   */
+  private static final class Slot {
+    Object record;
+    ByteBuffer bytes = ByteBuffer.allocate(INITIAL_BUFFER);
+    Throwable failure;
+    /** Marks the end of the records, put in the ring by close(). */
+    boolean end;
+    private boolean done;
+
+    synchronized void finish() {
+      done = true;
+      notifyAll();
+    }
+
+    synchronized void await() {
+      boolean interrupted = false;
+      while (!done) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    synchronized void reset() {
+      record = null;
+      failure = null;
+      done = false;
+      if (bytes.capacity() > MAX_KEPT_BUFFER) {
+        bytes = ByteBuffer.allocate(INITIAL_BUFFER);
+      } else {
+        bytes.clear();
+      }
+    }
+  }
+
+  /** Tells a worker to stop. */
+  private static final Slot STOP = new Slot();
+
+  private final OutputStream out;
+  private final Charset charset;
+  private final Slot[] ring;
+  /** Free slots; taken by write, given back by the writer thread. */
+  private final Semaphore free;
+  private final BlockingQueue<Slot> work;
+  private final Thread[] workers;
+  private final Thread writer;
+  private long next;
+  private boolean closed;
+  private volatile Throwable failure;
+
+  // Metrics, written by one thread each
+  private final long startNanos = System.nanoTime();
+  private volatile long endNanos;
+  private volatile long records;
+  private volatile long bytes;
+  private volatile long writerWaitNanos;
+  private volatile long producerWaitNanos;
+
+  /**
+   * Creates a pipeline of UTF-8 lines into out with a worker per processor
+   * and a ring of 1024 records.
+   * @param out
+   */
+  public NDJSONPipeline(OutputStream out) {
+    this(out, Runtime.getRuntime().availableProcessors(), 1024);
+  }
+
+  /**
+   * Creates a pipeline of UTF-8 lines into out.
+   * @param out
+   * @param parallelism number of worker threads
+   * @param queueDepth most records between the caller and the writer
+   */
+  public NDJSONPipeline(OutputStream out, int parallelism, int queueDepth) {
+    this(out, StandardCharsets.UTF_8, parallelism, queueDepth);
+  }
+
+  /**
+   * Creates a pipeline of lines in the given charset into out. Characters
+   * the charset can not represent are replaced, as String.getBytes does.
+   * @param out
+   * @param charset
+   * @param parallelism number of worker threads
+   * @param queueDepth most records between the caller and the writer
+   */
+  public NDJSONPipeline(OutputStream out, Charset charset, int parallelism, int queueDepth) {
+    if (out == null) {
+      throw new NullPointerException("out");
+    }
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism: " + parallelism);
+    }
+    if (queueDepth < 1) {
+      throw new IllegalArgumentException("queueDepth: " + queueDepth);
+    }
+    this.out = out;
+    this.charset = charset;
+    this.ring = new Slot[queueDepth];
+    for (int i = 0; i < queueDepth; i++) {
+      ring[i] = new Slot();
+    }
+    this.free = new Semaphore(queueDepth);
+    this.work = new ArrayBlockingQueue<Slot>(queueDepth + parallelism);
+    this.workers = new Thread[parallelism];
+    for (int i = 0; i < parallelism; i++) {
+      workers[i] = start(new Worker(), "agilejson-ndjson-worker-" + i);
+    }
+    this.writer = start(this::drain, "agilejson-ndjson-writer");
+  }
+
+  private static Thread start(Runnable r, String name) {
+    Thread t = new Thread(r, name);
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+
+  /**
+   * Queues record to be written as the next line, waiting while the ring
+   * is full.
+   * @param record
+   * @throws org.json.JSONException if an earlier record failed
+   * @throws java.lang.IllegalAccessException if an earlier record failed
+   * @throws java.io.IOException if out failed or the pipeline is closed
+   */
+  public void write(Object record) throws JSONException, IllegalAccessException, IOException {
+    if (closed) {
+      throw new IOException("NDJSONPipeline is closed");
+    }
+    rethrow();
+    Slot slot = claim();
+    slot.record = record;
+    work.add(slot);
+  }
+
+  /**
+   * Queues every element of records.
+   * @param records
+   * @return the number of records queued
+   * @throws org.json.JSONException if a record failed
+   * @throws java.lang.IllegalAccessException if a record failed
+   * @throws java.io.IOException if out failed or the pipeline is closed
+   */
+  public long writeAll(Iterable<?> records) throws JSONException, IllegalAccessException, IOException {
+    return writeAll(records.iterator());
+  }
+
+  /**
+   * Queues every remaining element of records.
+   * @param records
+   * @return the number of records queued
+   * @throws org.json.JSONException if a record failed
+   * @throws java.lang.IllegalAccessException if a record failed
+   * @throws java.io.IOException if out failed or the pipeline is closed
+   */
+  public long writeAll(Iterator<?> records) throws JSONException, IllegalAccessException, IOException {
+    long n = 0;
+    while (records.hasNext()) {
+      write(records.next());
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Queues every element of a Stream. The stream is consumed but left for
+   * the caller to close.
+   * @param records
+   * @return the number of records queued
+   * @throws org.json.JSONException if a record failed
+   * @throws java.lang.IllegalAccessException if a record failed
+   * @throws java.io.IOException if out failed or the pipeline is closed
+   */
+  public long writeAll(BaseStream<?, ?> records) throws JSONException, IllegalAccessException, IOException {
+    return writeAll(records.iterator());
+  }
+
+  /** Waits for the next slot of the ring to be free and takes it. */
+  private Slot claim() throws InterruptedIOException {
+    long t = System.nanoTime();
+    try {
+      free.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    producerWaitNanos += System.nanoTime() - t;
+    return ring[(int) (next++ % ring.length)];
+  }
+
+  /**
+   * Waits for every queued record to be written, stops the threads and
+   * closes out.
+   * @throws org.json.JSONException if a record failed
+   * @throws java.lang.IllegalAccessException if a record failed
+   * @throws java.io.IOException if out failed
+   */
+  @Override
+  public void close() throws JSONException, IllegalAccessException, IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      free.acquireUninterruptibly();
+      Slot end = ring[(int) (next++ % ring.length)];
+      end.end = true;
+      end.finish();
+      join(writer);
+      for (int i = 0; i < workers.length; i++) {
+        work.add(STOP);
+      }
+      for (int i = 0; i < workers.length; i++) {
+        join(workers[i]);
+      }
+    } finally {
+      endNanos = System.nanoTime();
+      try {
+        out.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    rethrow();
+  }
+
+  private static void join(Thread t) {
+    boolean interrupted = false;
+    while (t.isAlive()) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void rethrow() throws JSONException, IllegalAccessException, IOException {
+    Throwable f = failure;
+    if (f instanceof JSONException) {
+      throw (JSONException) f;
+    } else if (f instanceof IllegalAccessException) {
+      throw (IllegalAccessException) f;
+    } else if (f instanceof IOException) {
+      throw (IOException) f;
+    } else if (f instanceof Error) {
+      throw (Error) f;
+    } else if (f != null) {
+      throw (RuntimeException) f;
+    }
+  }
+
+  /**
+   * The writer thread: takes the slots in order, copies their lines into
+   * large writes to out and frees them, until the end slot.
+   */
+  private void drain() {
+    ByteBuffer batch = ByteBuffer.allocate(WRITE_SIZE);
+    for (long seq = 0; ; seq++) {
+      Slot slot = ring[(int) (seq % ring.length)];
+      long t = System.nanoTime();
+      slot.await();
+      writerWaitNanos += System.nanoTime() - t;
+      if (slot.end) {
+        slot.end = false;
+        slot.reset();
+        break;
+      }
+      if (failure == null) {
+        if (slot.failure != null) {
+          failure = slot.failure;
+        } else {
+          try {
+            emit(slot.bytes, batch);
+          } catch (Throwable e) {
+            // keep going, so the slots are still freed and close() returns
+            failure = e;
+          }
+        }
+      }
+      slot.reset();
+      free.release();
+    }
+    if (failure == null) {
+      try {
+        batch.flip();
+        out.write(batch.array(), 0, batch.limit());
+        out.flush();
+      } catch (Throwable e) {
+        failure = e;
+      }
+    }
+  }
+
+  private void emit(ByteBuffer line, ByteBuffer batch) throws IOException {
+    line.flip();
+    int length = line.remaining();
+    if (length > batch.remaining()) {
+      out.write(batch.array(), 0, batch.position());
+      batch.clear();
+    }
+    if (length > batch.remaining()) {
+      out.write(line.array(), 0, length);
+    } else {
+      batch.put(line);
+    }
+    records++;
+    bytes += length;
+  }
+
+  /**
+   * A worker thread: serializes records into their slots with its own
+   * alreadyVisited set and text buffer.
+   */
+  private final class Worker implements Runnable {
+    private final CharsetEncoder encoder = charset.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final StringBuilder line = new StringBuilder(256);
+    private char[] chars = new char[256];
+    private Set alreadyVisited = JSON.newVisitedSet();
+
+    @Override
+    public void run() {
+      while (true) {
+        Slot slot;
+        try {
+          slot = work.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (slot == STOP) {
+          return;
+        }
+        try {
+          if (failure == null) {
+            serialize(slot);
+          }
+        } catch (Throwable t) {
+          slot.failure = t;
+        }
+        slot.finish();
+      }
+    }
+
+    private void serialize(Slot slot) throws JSONException, IllegalAccessException, IOException {
+      Object record = slot.record;
+      slot.record = null;
+      if (alreadyVisited.size() > 1024) {
+        alreadyVisited = JSON.newVisitedSet();
+      } else if (!alreadyVisited.isEmpty()) {
+        alreadyVisited.clear();
+      }
+      line.setLength(0);
+      JSONEncoder.write(record, alreadyVisited, line);
+      line.append('\n');
+
+      int length = line.length();
+      if (chars.length < length) {
+        chars = new char[Math.max(length, chars.length * 2)];
+      }
+      line.getChars(0, length, chars, 0);
+      CharBuffer in = CharBuffer.wrap(chars, 0, length);
+      encoder.reset();
+      while (encoder.encode(in, slot.bytes, true).isOverflow()) {
+        slot.bytes = grow(slot.bytes);
+      }
+      while (encoder.flush(slot.bytes).isOverflow()) {
+        slot.bytes = grow(slot.bytes);
+      }
+    }
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer) {
+    ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+    buffer.flip();
+    bigger.put(buffer);
+    return bigger;
+  }
+
+  /**
+   * Returns the number of records written to out so far.
+   * @return the record count
+   */
+  public long getRecordCount() {
+    return records;
+  }
+
+  /**
+   * Returns the number of bytes written to out so far.
+   * @return the byte count
+   */
+  public long getByteCount() {
+    return bytes;
+  }
+
+  /**
+   * Returns the records written per second since the pipeline was created,
+   * up to close().
+   * @return records per second
+   */
+  public double getRecordsPerSecond() {
+    return records / elapsedSeconds();
+  }
+
+  /**
+   * Returns the bytes written per second since the pipeline was created,
+   * up to close().
+   * @return bytes per second
+   */
+  public double getBytesPerSecond() {
+    return bytes / elapsedSeconds();
+  }
+
+  /**
+   * Returns how long the writer thread has waited for the next record to
+   * be serialized. A large share of the elapsed time means more workers
+   * would help.
+   * @return milliseconds
+   */
+  public long getWriterWaitMillis() {
+    return writerWaitNanos / 1000000L;
+  }
+
+  /**
+   * Returns how long write has waited for a free slot in the ring. A large
+   * share of the elapsed time means the output is the bottleneck.
+   * @return milliseconds
+   */
+  public long getProducerWaitMillis() {
+    return producerWaitNanos / 1000000L;
+  }
+
+  private double elapsedSeconds() {
+    long end = endNanos != 0 ? endNanos : System.nanoTime();
+    return Math.max(1, end - startNanos) / 1e9;
+  }
+}
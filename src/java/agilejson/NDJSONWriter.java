@@ -0,0 +1,279 @@
+/**
+ * NDJSONWriter.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.stream.BaseStream;
+
+import org.json.JSONException;
+
+/**
+ * Writes records as newline delimited Json (NDJSON), one document per
+ * line, for exports and log shipping that serialize many objects in a row:
+ *
+ *   try (NDJSONWriter writer = new NDJSONWriter(out)) {
+ *     writer.writeAll(records);
+ *   }
+ *
+ * Each line is the same as JSON.toJSON(record). Where toJSON starts from
+ * scratch for every call, the writer keeps one alreadyVisited set, one
+ * text buffer and one byte buffer for all of its records, and collects the
+ * encoded lines until there are enough to pass to out in one large write:
+ * setFlushBytes bytes (64K by default), or after setFlushInterval has
+ * passed since the last flush, whichever comes first. The interval is
+ * checked as records are written; there is no timer thread, so call
+ * flush() when the stream goes quiet if lines must not wait.
+ *
+ * A record whose serialization fails writes nothing, so the lines already
+ * written stay whole. A writer is for a single thread.
+ */
+public class NDJSONWriter implements Closeable, Flushable {
+
+  private static final int DEFAULT_FLUSH_BYTES = 64 * 1024;
+
+  /** A visited set grown bigger than this is replaced rather than cleared. */
+  private static final int MAX_REUSED_VISITED = 1024;
+
+  private final OutputStream out;
+  private final CharsetEncoder encoder;
+  private final StringBuilder line = new StringBuilder(256);
+  private char[] chars = new char[256];
+  private ByteBuffer bytes;
+  private Set alreadyVisited;
+  private int flushBytes = DEFAULT_FLUSH_BYTES;
+  private long flushNanos;
+  private long lastFlush = System.nanoTime();
+  private long records;
+  private boolean closed;
+
+  /**
+   * Creates a writer of UTF-8 lines into out.
+   * @param out
+   */
+  public NDJSONWriter(OutputStream out) {
+    this(out, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Creates a writer of lines in the given charset into out. Characters
+   * the charset can not represent are replaced, as String.getBytes does.
+   * @param out
+   * @param charset
+   */
+  public NDJSONWriter(OutputStream out, Charset charset) {
+    if (out == null) {
+      throw new NullPointerException("out");
+    }
+    this.out = out;
+    this.encoder = charset.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.bytes = ByteBuffer.allocate(flushBytes);
+    this.alreadyVisited = JSON.newVisitedSet();
+  }
+
+  /**
+   * Sets how many bytes of lines are collected before they are written to
+   * out. The default is 64K.
+   * @param flushBytes
+   */
+  public void setFlushBytes(int flushBytes) {
+    if (flushBytes < 1) {
+      throw new IllegalArgumentException("flushBytes: " + flushBytes);
+    }
+    this.flushBytes = flushBytes;
+    if (bytes.capacity() < flushBytes) {
+      ByteBuffer bigger = ByteBuffer.allocate(flushBytes);
+      bytes.flip();
+      bigger.put(bytes);
+      bytes = bigger;
+    }
+  }
+
+  /**
+   * Sets the longest time lines are held before they are flushed, checked
+   * each time a record is written. 0, the default, holds them until
+   * setFlushBytes worth have been collected.
+   * @param millis
+   */
+  public void setFlushInterval(long millis) {
+    if (millis < 0) {
+      throw new IllegalArgumentException("millis: " + millis);
+    }
+    this.flushNanos = millis * 1000000L;
+  }
+
+  /**
+   * Writes record as one line.
+   * @param record
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException if out can not be written to
+   */
+  public void write(Object record) throws JSONException, IllegalAccessException, IOException {
+    if (closed) {
+      throw new IOException("NDJSONWriter is closed");
+    }
+    if (alreadyVisited.size() > MAX_REUSED_VISITED) {
+      alreadyVisited = JSON.newVisitedSet();
+    } else if (!alreadyVisited.isEmpty()) {
+      alreadyVisited.clear();
+    }
+    line.setLength(0);
+    JSONEncoder.write(record, alreadyVisited, line);
+    line.append('\n');
+    encodeLine();
+    records++;
+    if (bytes.position() >= flushBytes
+        || (flushNanos > 0 && System.nanoTime() - lastFlush >= flushNanos)) {
+      flush();
+    }
+  }
+
+  /**
+   * Writes every element of records as a line.
+   * @param records
+   * @return the number of lines written
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException if out can not be written to
+   */
+  public long writeAll(Iterable<?> records) throws JSONException, IllegalAccessException, IOException {
+    return writeAll(records.iterator());
+  }
+
+  /**
+   * Writes every remaining element of records as a line.
+   * @param records
+   * @return the number of lines written
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException if out can not be written to
+   */
+  public long writeAll(Iterator<?> records) throws JSONException, IllegalAccessException, IOException {
+    long n = 0;
+    while (records.hasNext()) {
+      write(records.next());
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Writes every element of a Stream as a line. The stream is consumed but
+   * left for the caller to close.
+   * @param records
+   * @return the number of lines written
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException if out can not be written to
+   */
+  public long writeAll(BaseStream<?, ?> records) throws JSONException, IllegalAccessException, IOException {
+    return writeAll(records.iterator());
+  }
+
+  /**
+   * Returns the number of records written so far.
+   * @return the record count
+   */
+  public long getRecordCount() {
+    return records;
+  }
+
+  /**
+   * Encodes line behind the lines collected in bytes, handing full buffers
+   * to out when a line does not fit.
+   */
+  private void encodeLine() throws IOException {
+    int length = line.length();
+    if (chars.length < length) {
+      chars = new char[Math.max(length, chars.length * 2)];
+    }
+    line.getChars(0, length, chars, 0);
+    CharBuffer in = CharBuffer.wrap(chars, 0, length);
+    encoder.reset();
+    while (encoder.encode(in, bytes, true).isOverflow()) {
+      makeRoom();
+    }
+    while (encoder.flush(bytes).isOverflow()) {
+      makeRoom();
+    }
+  }
+
+  private void makeRoom() throws IOException {
+    if (bytes.position() > 0) {
+      writeOut();
+    } else {
+      bytes = ByteBuffer.allocate(bytes.capacity() * 2);
+    }
+  }
+
+  private void writeOut() throws IOException {
+    if (bytes.position() > 0) {
+      out.write(bytes.array(), 0, bytes.position());
+      bytes.clear();
+    }
+  }
+
+  /**
+   * Writes the lines collected so far to out and flushes it.
+   * @throws java.io.IOException
+   */
+  @Override
+  public void flush() throws IOException {
+    writeOut();
+    out.flush();
+    lastFlush = System.nanoTime();
+  }
+
+  /**
+   * Flushes the remaining lines and closes out.
+   * @throws java.io.IOException
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      flush();
+    } finally {
+      out.close();
+    }
+  }
+}
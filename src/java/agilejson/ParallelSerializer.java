@@ -0,0 +1,169 @@
+/**
+ * ParallelSerializer.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.json.JSONException;
+
+/**
+ * Serializes the elements of a large Object[] or RandomAccess List on a
+ * ForkJoinPool. The elements are split into contiguous chunks, each chunk is
+ * written into its own buffer and the buffers are appended to the output in
+ * order, so the result has the same layout as the sequential one.
+ *
+ * Each chunk looks objects up in the caller's alreadyVisited, which nothing
+ * writes to while the chunks run, and adds the ones it visits to a
+ * LayeredSet layer of its own, so cycles back to the array or its ancestors
+ * are cut inside every chunk without copying the set. Objects visited by
+ * one chunk are not seen by the others, so an object shared by elements in
+ * different chunks is written in each of them. Once all chunks are done
+ * their visited objects are added back to the caller's set, so values after
+ * the array behave as they would sequentially.
+ */
+final class ParallelSerializer {
+
+  /** Chunks are never made smaller than this many elements. */
+  private static final int MIN_CHUNK = 256;
+
+  private ParallelSerializer() {}
+
+  /**
+   * Writes elements [0, size) of an Object[] or List as a Json array.
+   * @param elements Object[] or RandomAccess List
+   * @param size number of elements
+   * @param pool pool to run the chunks on
+   * @param out
+   * @param alreadyVisited
+   * @param projection applied to every element, null for none
+   * @param view the @TOJSON view of beans, null for none
+   */
+  static void writeArray(Object elements, int size, ForkJoinPool pool, Appendable out, Set alreadyVisited, Projection projection, String view) throws JSONException, IllegalAccessException, IOException {
+    int chunks = Math.max(1, Math.min(pool.getParallelism() * 4, size / MIN_CHUNK));
+    int chunkSize = (size + chunks - 1) / chunks;
+    List<Chunk> tasks = new ArrayList<Chunk>(chunks);
+    for (int from = 0; from < size; from += chunkSize) {
+      tasks.add(new Chunk(elements, from, Math.min(size, from + chunkSize), alreadyVisited, projection, view));
+    }
+
+    if (ForkJoinTask.inForkJoinPool()) {
+      ForkJoinTask.invokeAll(tasks);
+    } else {
+      pool.invoke(new RecursiveTask<Void>() {
+        @Override
+        protected Void compute() {
+          ForkJoinTask.invokeAll(tasks);
+          return null;
+        }
+      });
+    }
+
+    out.append('[');
+    for (int i = 0; i < tasks.size(); i++) {
+      Chunk chunk = tasks.get(i);
+      chunk.rethrow();
+      if (i > 0) {
+        out.append(',');
+      }
+      out.append(chunk.buffer);
+    }
+    out.append(']');
+    for (int i = 0; i < tasks.size(); i++) {
+      alreadyVisited.addAll(tasks.get(i).visited.layer());
+    }
+  }
+
+  /**
+   * One contiguous run of elements, written comma separated into its own
+   * buffer with its own layer of visited objects. Failures are kept and
+   * rethrown by the calling thread.
+   */
+  private static final class Chunk extends RecursiveTask<Void> {
+    private static final long serialVersionUID = 1L;
+
+    private final Object elements;
+    private final int from;
+    private final int to;
+    private final Projection projection;
+    private final String view;
+    final LayeredSet visited;
+    final StringBuilder buffer = new StringBuilder();
+    private Exception failure;
+
+    Chunk(Object elements, int from, int to, Set parentVisited, Projection projection, String view) {
+      this.elements = elements;
+      this.from = from;
+      this.to = to;
+      this.projection = projection;
+      this.view = view;
+      this.visited = new LayeredSet(parentVisited);
+    }
+
+    @Override
+    protected Void compute() {
+      try {
+        if (elements instanceof Object[]) {
+          Object[] array = (Object[]) elements;
+          for (int j = from; j < to; j++) {
+            if (j > from) {
+              buffer.append(',');
+            }
+            JSONEncoder.write(array[j], visited, buffer, projection, view);
+          }
+        } else {
+          List list = (List) elements;
+          for (int j = from; j < to; j++) {
+            if (j > from) {
+              buffer.append(',');
+            }
+            JSONEncoder.write(list.get(j), visited, buffer, projection, view);
+          }
+        }
+      } catch (Exception e) {
+        failure = e;
+      }
+      return null;
+    }
+
+    void rethrow() throws JSONException, IllegalAccessException, IOException {
+      if (failure instanceof JSONException) {
+        throw (JSONException) failure;
+      } else if (failure instanceof IllegalAccessException) {
+        throw (IllegalAccessException) failure;
+      } else if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure != null) {
+        throw (RuntimeException) failure;
+      }
+    }
+  }
+}
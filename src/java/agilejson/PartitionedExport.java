@@ -0,0 +1,388 @@
+/**
+ * PartitionedExport.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import agilejson.special.SpecialHashSet;
+
+import org.json.JSONException;
+
+/**
+ * Exports a large Object[] or RandomAccess List in partitions that are
+ * serialized in parallel on JSON's parallel pool (see
+ * JSON.setParallelPool), each with FileChannel positional writes:
+ *
+ *   toFiles(rows, dir, "orders", 8, true) writes orders-00000.json ...
+ *   orders-00007.json, each a Json array of a contiguous range of the
+ *   elements, and orders.manifest.json listing them;
+ *
+ *   toFile(rows, file, 8) writes one Json array of all of the elements:
+ *   the partitions are serialized into temporary files next to it, the
+ *   file is sized to their total and each partition is copied into its
+ *   byte range.
+ *
+ * Elements are written as the elements of a Stream are: objects visited
+ * while writing one element are forgotten before the next, so memory does
+ * not grow with the number of elements and an object shared by two
+ * elements is written in both. In shared reference mode ids are numbered
+ * per element. Files of a failed export are left as they are.
+ */
+public final class PartitionedExport {
+
+  /** Text serialized before it is encoded. */
+  private static final int TEXT_BLOCK = 8192;
+
+  /** Bytes collected before a positional write. */
+  private static final int WRITE_BLOCK = 1 << 20;
+
+  private PartitionedExport() {}
+
+  /**
+   * Writes the elements in partitions to directory/name-NNNNN.json, each
+   * a Json array, and if manifest is true directory/name.manifest.json:
+   * {"count":...,"partitions":[{"file":...,"from":...,"count":...,"bytes":...},...]}
+   * @param elements Object[] or RandomAccess List
+   * @param directory
+   * @param name prefix of the file names
+   * @param partitions number of partitions, at most one per element
+   * @param manifest whether to write the manifest
+   * @return the partition files in element order
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException
+   */
+  public static List<Path> toFiles(Object elements, Path directory, String name, int partitions, boolean manifest) throws JSONException, IllegalAccessException, IOException {
+    int size = size(elements);
+    List<Partition> tasks = split(elements, size, partitions, true);
+    List<Path> files = new ArrayList<Path>(tasks.size());
+    for (int i = 0; i < tasks.size(); i++) {
+      Path file = directory.resolve(String.format("%s-%05d.json", name, i));
+      tasks.get(i).file = file;
+      files.add(file);
+    }
+    run(tasks);
+
+    if (manifest) {
+      // written by hand so that shared reference mode does not add ids
+      StringBuilder m = new StringBuilder();
+      m.append("{\"count\":").append(size).append(",\"partitions\":[");
+      for (int i = 0; i < tasks.size(); i++) {
+        Partition p = tasks.get(i);
+        if (i > 0) {
+          m.append(',');
+        }
+        m.append("{\"file\":");
+        JSON.quote(p.file.getFileName().toString(), m);
+        m.append(",\"from\":").append(p.from)
+          .append(",\"count\":").append(p.to - p.from)
+          .append(",\"bytes\":").append(p.bytes).append('}');
+      }
+      m.append("]}");
+      Files.write(directory.resolve(name + ".manifest.json"), m.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    return files;
+  }
+
+  /**
+   * Writes the elements to file as one Json array, serializing them in
+   * partitions.
+   * @param elements Object[] or RandomAccess List
+   * @param file
+   * @param partitions number of partitions, at most one per element
+   * @return the size of file
+   * @throws org.json.JSONException
+   * @throws java.lang.IllegalAccessException
+   * @throws java.io.IOException
+   */
+  public static long toFile(Object elements, Path file, int partitions) throws JSONException, IllegalAccessException, IOException {
+    int size = size(elements);
+    List<Partition> tasks = split(elements, size, partitions, false);
+    Path directory = file.toAbsolutePath().getParent();
+    try {
+      for (int i = 0; i < tasks.size(); i++) {
+        tasks.get(i).file = Files.createTempFile(directory, file.getFileName().toString(), ".part");
+      }
+      run(tasks);
+
+      // "[" + partitions joined with "," + "]"
+      long[] offsets = new long[tasks.size()];
+      long length = 1;
+      for (int i = 0; i < tasks.size(); i++) {
+        if (i > 0 && tasks.get(i).bytes > 0) {
+          length++;
+        }
+        offsets[i] = length;
+        length += tasks.get(i).bytes;
+      }
+      length++;
+
+      try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        // writing the last byte first sizes the file
+        writeFully(out, ByteBuffer.wrap(new byte[]{']'}), length - 1);
+        writeFully(out, ByteBuffer.wrap(new byte[]{'['}), 0);
+        for (int i = 1; i < tasks.size(); i++) {
+          if (tasks.get(i).bytes > 0) {
+            writeFully(out, ByteBuffer.wrap(new byte[]{','}), offsets[i] - 1);
+          }
+        }
+        List<Copy> copies = new ArrayList<Copy>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+          copies.add(new Copy(tasks.get(i), out, offsets[i]));
+        }
+        invokeAll(copies);
+        for (int i = 0; i < copies.size(); i++) {
+          copies.get(i).rethrow();
+        }
+      }
+      return length;
+    } finally {
+      for (int i = 0; i < tasks.size(); i++) {
+        if (tasks.get(i).file != null) {
+          Files.deleteIfExists(tasks.get(i).file);
+        }
+      }
+    }
+  }
+
+  private static int size(Object elements) {
+    if (elements instanceof Object[]) {
+      return ((Object[]) elements).length;
+    } else if (elements instanceof List) {
+      return ((List) elements).size();
+    }
+    throw new IllegalArgumentException("Not an Object[] or List: " + elements);
+  }
+
+  private static List<Partition> split(Object elements, int size, int partitions, boolean brackets) {
+    if (partitions < 1) {
+      throw new IllegalArgumentException("partitions: " + partitions);
+    }
+    int n = Math.max(1, Math.min(partitions, size));
+    List<Partition> tasks = new ArrayList<Partition>(n);
+    for (int i = 0; i < n; i++) {
+      tasks.add(new Partition(elements, (int) ((long) size * i / n), (int) ((long) size * (i + 1) / n), brackets));
+    }
+    return tasks;
+  }
+
+  private static void run(List<Partition> tasks) throws JSONException, IllegalAccessException, IOException {
+    invokeAll(tasks);
+    for (int i = 0; i < tasks.size(); i++) {
+      tasks.get(i).rethrow();
+    }
+  }
+
+  private static void invokeAll(List<? extends ForkJoinTask<Void>> tasks) {
+    if (ForkJoinTask.inForkJoinPool()) {
+      ForkJoinTask.invokeAll(tasks);
+    } else {
+      JSON.parallelPool().invoke(new RecursiveTask<Void>() {
+        @Override
+        protected Void compute() {
+          ForkJoinTask.invokeAll(tasks);
+          return null;
+        }
+      });
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer bytes, long position) throws IOException {
+    while (bytes.hasRemaining()) {
+      position += channel.write(bytes, position);
+    }
+  }
+
+  /**
+   * A failure kept by a task and rethrown by the calling thread.
+   */
+  private abstract static class Task extends RecursiveTask<Void> {
+    private static final long serialVersionUID = 1L;
+
+    Exception failure;
+
+    void rethrow() throws JSONException, IllegalAccessException, IOException {
+      if (failure instanceof JSONException) {
+        throw (JSONException) failure;
+      } else if (failure instanceof IllegalAccessException) {
+        throw (IllegalAccessException) failure;
+      } else if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure != null) {
+        throw (RuntimeException) failure;
+      }
+    }
+  }
+
+  /**
+   * Elements [from, to) serialized into their own file, with or without
+   * the brackets of an array.
+   */
+  private static final class Partition extends Task {
+    private static final long serialVersionUID = 1L;
+
+    final Object elements;
+    final int from;
+    final int to;
+    final boolean brackets;
+    Path file;
+    /** Bytes written to file. */
+    long bytes;
+    private char[] chars = new char[TEXT_BLOCK * 2];
+
+    Partition(Object elements, int from, int to, boolean brackets) {
+      this.elements = elements;
+      this.from = from;
+      this.to = to;
+      this.brackets = brackets;
+    }
+
+    @Override
+    protected Void compute() {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        write(channel);
+      } catch (Exception e) {
+        failure = e;
+      }
+      return null;
+    }
+
+    private void write(FileChannel channel) throws JSONException, IllegalAccessException, IOException {
+      CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      StringBuilder text = new StringBuilder(TEXT_BLOCK * 2);
+      ByteBuffer block = ByteBuffer.allocate(WRITE_BLOCK);
+      Set alreadyVisited;
+      LayeredSet layers = null;
+      if (JSON.isSharedReferences()) {
+        alreadyVisited = new RefTable();
+      } else {
+        Set root = new SpecialHashSet();
+        root.add(elements);
+        alreadyVisited = layers = new LayeredSet(root);
+      }
+      if (brackets) {
+        text.append('[');
+      }
+      for (int j = from; j < to; j++) {
+        if (j > from) {
+          text.append(',');
+        }
+        Object e = elements instanceof Object[] ? ((Object[]) elements)[j] : ((List) elements).get(j);
+        if (layers != null) {
+          layers.nextLayer();
+        } else {
+          alreadyVisited.clear();
+          alreadyVisited.add(elements);
+        }
+        JSONEncoder.write(e, alreadyVisited, text);
+        if (text.length() >= TEXT_BLOCK) {
+          encode(text, encoder, block, channel);
+        }
+      }
+      if (brackets) {
+        text.append(']');
+      }
+      encode(text, encoder, block, channel);
+      block.flip();
+      writeFully(channel, block, bytes);
+      bytes += block.limit();
+    }
+
+    /**
+     * Encodes text into block, writing block to the channel whenever it
+     * fills up, and empties text.
+     */
+    private void encode(StringBuilder text, CharsetEncoder encoder, ByteBuffer block, FileChannel channel) throws IOException {
+      int length = text.length();
+      if (chars.length < length) {
+        chars = new char[Math.max(length, chars.length * 2)];
+      }
+      text.getChars(0, length, chars, 0);
+      CharBuffer in = CharBuffer.wrap(chars, 0, length);
+      encoder.reset();
+      while (encoder.encode(in, block, true).isOverflow()) {
+        block.flip();
+        int n = block.limit();
+        writeFully(channel, block, bytes);
+        bytes += n;
+        block.clear();
+      }
+      text.setLength(0);
+    }
+  }
+
+  /**
+   * Copies a serialized partition into its byte range of the output.
+   */
+  private static final class Copy extends Task {
+    private static final long serialVersionUID = 1L;
+
+    private final Partition partition;
+    private final FileChannel out;
+    private final long position;
+
+    Copy(Partition partition, FileChannel out, long position) {
+      this.partition = partition;
+      this.out = out;
+      this.position = position;
+    }
+
+    @Override
+    protected Void compute() {
+      try (FileChannel in = FileChannel.open(partition.file, StandardOpenOption.READ)) {
+        long done = 0;
+        while (done < partition.bytes) {
+          long n = out.transferFrom(in, position + done, partition.bytes - done);
+          if (n == 0) {
+            throw new IOException("Partition file " + partition.file + " ended after "
+              + done + " of " + partition.bytes + " bytes");
+          }
+          done += n;
+        }
+      } catch (Exception e) {
+        failure = e;
+      }
+      return null;
+    }
+  }
+}
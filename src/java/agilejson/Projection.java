@@ -0,0 +1,166 @@
+/**
+ * Projection.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The parts of a document a caller wants, given as comma separated key
+ * paths such as "id,items.id,items.price", compiled into a tree of keys.
+ * Passed to JSON.toJSON(Object, Projection), it makes beans and Maps write
+ * only the members on those paths; getters that are not on a path are
+ * never invoked. A path that ends at a key takes everything below it, and
+ * "*" matches any key. Arrays and collections are transparent: a path
+ * continues into each of their elements, so "items.id" takes the id of
+ * every element of items.
+ *
+ * Projections are immutable and thread safe. compile() keeps the ones it
+ * has built, so a projection is compiled once per distinct request shape,
+ * and each projection works out once per bean class which getters it
+ * takes.
+ */
+public final class Projection {
+
+  /** Compiled projections are forgotten beyond this many. */
+  private static final int MAX_CACHED = 1024;
+
+  private static final Map<String, Projection> COMPILED = new ConcurrentHashMap<String, Projection>();
+
+  /**
+   * The getters of a bean class a projection takes, and the projection
+   * applying to each of their values.
+   */
+  static final class Selection {
+    /** Whether each getter of the plan is written. */
+    final boolean[] include;
+    /** The projection for each included getter's value, null for all of it. */
+    final Projection[] children;
+
+    Selection(BeanPlan plan, Projection p) {
+      BeanPlan.Getter[] getters = plan.getters;
+      include = new boolean[getters.length];
+      children = new Projection[getters.length];
+      for (int i = 0; i < getters.length; i++) {
+        Projection child = p.child(getters[i].key);
+        if (child != null) {
+          include[i] = true;
+          children[i] = child == ALL ? null : child;
+        }
+      }
+    }
+  }
+
+  /** Marks a key whose whole value is taken. */
+  static final Projection ALL = new Projection("*");
+
+  private final String paths;
+  private final Map<String, Projection> keys = new LinkedHashMap<String, Projection>();
+  private final Map<BeanPlan, Selection> selections = new ConcurrentHashMap<BeanPlan, Selection>();
+
+  private Projection(String paths) {
+    this.paths = paths;
+  }
+
+  /**
+   * Compiles comma separated key paths, or returns the projection already
+   * compiled for the same text.
+   * @param paths e.g. "id,items.id,items.price"
+   * @return the projection
+   * @throws IllegalArgumentException if a path is empty or has an empty key
+   */
+  public static Projection compile(String paths) {
+    Projection p = COMPILED.get(paths);
+    if (p == null) {
+      p = parse(paths);
+      if (COMPILED.size() >= MAX_CACHED) {
+        COMPILED.clear();
+      }
+      COMPILED.put(paths, p);
+    }
+    return p;
+  }
+
+  private static Projection parse(String paths) {
+    Projection root = new Projection(paths);
+    String[] list = paths.split(",");
+    for (int i = 0; i < list.length; i++) {
+      String path = list[i].trim();
+      String[] keys = path.split("\\.", -1);
+      Projection node = root;
+      for (int j = 0; j < keys.length; j++) {
+        String key = keys[j].trim();
+        if (key.length() == 0) {
+          throw new IllegalArgumentException("Empty key in projection path: \"" + path + "\"");
+        }
+        Projection next = node.keys.get(key);
+        if (j == keys.length - 1) {
+          // the whole value, even if a longer path asked for part of it
+          node.keys.put(key, ALL);
+        } else if (next == ALL) {
+          break;
+        } else {
+          if (next == null) {
+            next = new Projection(paths);
+            node.keys.put(key, next);
+          }
+          node = next;
+        }
+      }
+    }
+    return root;
+  }
+
+  /**
+   * Returns the projection for the value under key: ALL for all of it, or
+   * null if key is not taken.
+   */
+  Projection child(String key) {
+    Projection p = keys.get(key);
+    if (p == null) {
+      p = keys.get("*");
+    }
+    return p;
+  }
+
+  /**
+   * Returns which getters of plan this projection takes.
+   */
+  Selection select(BeanPlan plan) {
+    Selection s = selections.get(plan);
+    if (s == null) {
+      s = new Selection(plan, this);
+      selections.put(plan, s);
+    }
+    return s;
+  }
+
+  @Override
+  public String toString() {
+    return paths;
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * RefTable.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.util.AbstractSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/**
+ * The alreadyVisited set of shared reference mode (see
+ * JSON.setSharedReferences): an identity map from every visited object to
+ * its id. Beans and Maps are given ids, 1, 2, 3, ... in the order they are
+ * first written; other visited objects map to 0.
+ */
+final class RefTable extends AbstractSet {
+
+  private static final Integer NO_ID = Integer.valueOf(0);
+
+  private final IdentityHashMap<Object, Integer> ids = new IdentityHashMap<Object, Integer>();
+  private int next = 1;
+
+  /**
+   * @return the id of o, or 0 if it has none yet
+   */
+  int id(Object o) {
+    Integer id = ids.get(o);
+    return id == null ? 0 : id.intValue();
+  }
+
+  /**
+   * Gives o the next id.
+   * @return the id
+   */
+  int assign(Object o) {
+    int id = next++;
+    ids.put(o, Integer.valueOf(id));
+    return id;
+  }
+
+  @Override
+  public boolean add(Object o) {
+    if (ids.containsKey(o)) {
+      return false;
+    }
+    ids.put(o, NO_ID);
+    return true;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return ids.containsKey(o);
+  }
+
+  /**
+   * Forgets every object and starts the ids again from 1.
+   */
+  @Override
+  public void clear() {
+    ids.clear();
+    next = 1;
+  }
+
+  @Override
+  public int size() {
+    return ids.size();
+  }
+
+  @Override
+  public Iterator iterator() {
+    return ids.keySet().iterator();
+  }
+}
@@ -0,0 +1,294 @@
+/**
+ * RopeBuffer.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * An Appendable made of fixed-size chunks of characters, for building
+ * large documents without the copying of a growing StringBuilder: a full
+ * chunk is never moved, the next one is simply added. Chunks are taken
+ * from a pool shared by all RopeBuffers and given back by close(), so a
+ * server building one document after another reuses the same chunks.
+ *
+ *   try (RopeBuffer rope = new RopeBuffer()) {
+ *     JSON.toJSON(o, rope);
+ *     rope.writeTo(channel);
+ *   }
+ *
+ * The text can be read as a CharSequence in place, or encoded to UTF-8 as
+ * an array of ByteBuffers for a gathering write. Only toString() and
+ * subSequence() copy it into a String. A buffer is for a single thread.
+ */
+public class RopeBuffer implements Appendable, CharSequence, Closeable {
+
+  private static final int SHIFT = 13;
+
+  /** Characters per chunk. */
+  private static final int CHUNK = 1 << SHIFT;
+
+  private static final int MASK = CHUNK - 1;
+
+  /**
+   * Bytes per encoded chunk: room for a chunk of characters in UTF-8 and
+   * the surrogate pair it may finish.
+   */
+  private static final int BYTE_CHUNK = CHUNK * 3 + 4;
+
+  /** Most chunks of each kind kept in the pools. */
+  private static final int POOL_SIZE = 256;
+
+  private static final ArrayBlockingQueue<char[]> CHARS = new ArrayBlockingQueue<char[]>(POOL_SIZE);
+  private static final ArrayBlockingQueue<ByteBuffer> BYTES = new ArrayBlockingQueue<ByteBuffer>(POOL_SIZE);
+
+  private char[][] chunks = new char[16][];
+  /** Chunks in use; the last one is being filled. */
+  private int count;
+  private int length;
+  private ByteBuffer[] encoded;
+  private int encodedCount;
+
+  @Override
+  public RopeBuffer append(CharSequence csq) {
+    if (csq == null) {
+      csq = "null";
+    }
+    return append(csq, 0, csq.length());
+  }
+
+  @Override
+  public RopeBuffer append(CharSequence csq, int start, int end) {
+    if (csq == null) {
+      csq = "null";
+    }
+    while (start < end) {
+      int offset = length & MASK;
+      if (offset == 0 && (length >>> SHIFT) == count) {
+        addChunk();
+      }
+      char[] chunk = chunks[count - 1];
+      int n = Math.min(end - start, CHUNK - offset);
+      if (csq instanceof String) {
+        ((String) csq).getChars(start, start + n, chunk, offset);
+      } else if (csq instanceof StringBuilder) {
+        ((StringBuilder) csq).getChars(start, start + n, chunk, offset);
+      } else {
+        for (int i = 0; i < n; i++) {
+          chunk[offset + i] = csq.charAt(start + i);
+        }
+      }
+      length += n;
+      start += n;
+    }
+    return this;
+  }
+
+  @Override
+  public RopeBuffer append(char c) {
+    int offset = length & MASK;
+    if (offset == 0 && (length >>> SHIFT) == count) {
+      addChunk();
+    }
+    chunks[count - 1][offset] = c;
+    length++;
+    return this;
+  }
+
+  private void addChunk() {
+    if (count == chunks.length) {
+      chunks = Arrays.copyOf(chunks, count * 2);
+    }
+    char[] chunk = CHARS.poll();
+    chunks[count++] = chunk != null ? chunk : new char[CHUNK];
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException("index: " + index);
+    }
+    return chunks[index >>> SHIFT][index & MASK];
+  }
+
+  /**
+   * Returns the characters from start to end as a String, copying only
+   * those.
+   */
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException("start: " + start + ", end: " + end);
+    }
+    char[] copy = new char[end - start];
+    int done = 0;
+    while (start + done < end) {
+      int i = start + done;
+      int n = Math.min(end - i, CHUNK - (i & MASK));
+      System.arraycopy(chunks[i >>> SHIFT], i & MASK, copy, done, n);
+      done += n;
+    }
+    return new String(copy);
+  }
+
+  /**
+   * Returns the whole text as a String; this is the one place it is copied
+   * into a single array.
+   */
+  @Override
+  public String toString() {
+    return subSequence(0, length).toString();
+  }
+
+  /**
+   * Returns the text encoded as UTF-8 in a ByteBuffer per chunk, ready for
+   * a gathering write. The buffers belong to the rope: they are valid until
+   * the next call or close().
+   * @return the buffers, flipped for reading
+   */
+  public ByteBuffer[] toByteBuffers() {
+    releaseBytes();
+    CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    encoded = new ByteBuffer[count];
+    CharBuffer in = CharBuffer.allocate(CHUNK + 1);
+    in.flip();
+    for (int i = 0; i < count; i++) {
+      boolean last = i == count - 1;
+      // carry a high surrogate left at the end of the previous chunk
+      in.compact();
+      in.put(chunks[i], 0, last ? length - (i << SHIFT) : CHUNK);
+      in.flip();
+      ByteBuffer out = BYTES.poll();
+      if (out == null) {
+        out = ByteBuffer.allocate(BYTE_CHUNK);
+      }
+      out.clear();
+      encoder.encode(in, out, last);
+      if (last) {
+        encoder.flush(out);
+      }
+      out.flip();
+      encoded[encodedCount++] = out;
+    }
+    ByteBuffer[] view = new ByteBuffer[count];
+    for (int i = 0; i < count; i++) {
+      view[i] = encoded[i].duplicate();
+    }
+    return view;
+  }
+
+  /**
+   * Writes the text as UTF-8 to channel, in one gathering write where the
+   * channel supports it.
+   * @param channel
+   * @return the number of bytes written
+   * @throws java.io.IOException
+   */
+  public long writeTo(WritableByteChannel channel) throws IOException {
+    ByteBuffer[] buffers = toByteBuffers();
+    long written = 0;
+    if (channel instanceof GatheringByteChannel) {
+      GatheringByteChannel gathering = (GatheringByteChannel) channel;
+      int first = 0;
+      while (first < buffers.length) {
+        written += gathering.write(buffers, first, buffers.length - first);
+        while (first < buffers.length && !buffers[first].hasRemaining()) {
+          first++;
+        }
+      }
+    } else {
+      for (int i = 0; i < buffers.length; i++) {
+        while (buffers[i].hasRemaining()) {
+          written += channel.write(buffers[i]);
+        }
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Writes the text as UTF-8 to out.
+   * @param out
+   * @return the number of bytes written
+   * @throws java.io.IOException
+   */
+  public long writeTo(OutputStream out) throws IOException {
+    ByteBuffer[] buffers = toByteBuffers();
+    long written = 0;
+    for (int i = 0; i < buffers.length; i++) {
+      out.write(buffers[i].array(), buffers[i].position(), buffers[i].remaining());
+      written += buffers[i].remaining();
+    }
+    return written;
+  }
+
+  private void releaseBytes() {
+    for (int i = 0; i < encodedCount; i++) {
+      BYTES.offer(encoded[i]);
+      encoded[i] = null;
+    }
+    encodedCount = 0;
+  }
+
+  /**
+   * Empties the rope and gives its chunks back to the pool, for reuse by
+   * this or any other RopeBuffer.
+   */
+  public void clear() {
+    releaseBytes();
+    for (int i = 0; i < count; i++) {
+      CHARS.offer(chunks[i]);
+      chunks[i] = null;
+    }
+    count = 0;
+    length = 0;
+  }
+
+  /**
+   * Gives the chunks back to the pool; the same as clear().
+   */
+  @Override
+  public void close() {
+    clear();
+  }
+}
@@ -0,0 +1,295 @@
+/**
+ * SpillBuffer.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An Appendable that holds a document as UTF-8 bytes: the first
+ * memoryLimit bytes on the heap, the rest in a temporary file. It lets
+ * documents larger than the heap can spare be built without a String:
+ *
+ *   try (SpillBuffer buffer = new SpillBuffer(64 << 20)) {
+ *     JSON.toJSON(o, buffer);
+ *     buffer.transferTo(channel);
+ *   }
+ *
+ * Text is encoded in small blocks as it is appended, so the heap used is
+ * at most memoryLimit plus the blocks, whatever the size of the document.
+ * transferTo hands the spilled part over with FileChannel.transferTo, which
+ * lets the operating system copy it without passing it through the heap.
+ * Appending ends with the first transferTo or writeTo. The temporary file
+ * is deleted by close(). A buffer is for a single thread.
+ */
+public class SpillBuffer implements Appendable, Closeable {
+
+  /** Characters and bytes encoded at a time. */
+  private static final int BLOCK = 8192;
+
+  /** The most an array can hold. */
+  private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+  private final int memoryLimit;
+  private final Path directory;
+  private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+    .onMalformedInput(CodingErrorAction.REPLACE)
+    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final CharBuffer chars = CharBuffer.allocate(BLOCK);
+  private final ByteBuffer staging = ByteBuffer.allocate(BLOCK);
+  /** The bytes on the heap, in BLOCK sized arrays. */
+  private List<byte[]> memory = new ArrayList<byte[]>();
+  private int memorySize;
+  private FileChannel file;
+  private long fileSize;
+  private boolean finished;
+  private boolean closed;
+
+  /**
+   * Creates a buffer that spills to the default temporary directory.
+   * @param memoryLimit bytes kept on the heap before spilling
+   */
+  public SpillBuffer(long memoryLimit) {
+    this(memoryLimit, null);
+  }
+
+  /**
+   * Creates a buffer that spills to a file in directory.
+   * @param memoryLimit bytes kept on the heap before spilling
+   * @param directory where the temporary file goes, null for the default
+   */
+  public SpillBuffer(long memoryLimit, Path directory) {
+    if (memoryLimit < 0) {
+      throw new IllegalArgumentException("memoryLimit: " + memoryLimit);
+    }
+    this.memoryLimit = (int) Math.min(memoryLimit, MAX_ARRAY);
+    this.directory = directory;
+  }
+
+  @Override
+  public SpillBuffer append(CharSequence csq) throws IOException {
+    if (csq == null) {
+      csq = "null";
+    }
+    return append(csq, 0, csq.length());
+  }
+
+  @Override
+  public SpillBuffer append(CharSequence csq, int start, int end) throws IOException {
+    if (csq == null) {
+      csq = "null";
+    }
+    ensureOpen();
+    char[] array = chars.array();
+    while (start < end) {
+      if (!chars.hasRemaining()) {
+        encode(false);
+      }
+      int n = Math.min(end - start, chars.remaining());
+      int position = chars.position();
+      if (csq instanceof String) {
+        ((String) csq).getChars(start, start + n, array, position);
+      } else if (csq instanceof StringBuilder) {
+        ((StringBuilder) csq).getChars(start, start + n, array, position);
+      } else {
+        for (int i = 0; i < n; i++) {
+          array[position + i] = csq.charAt(start + i);
+        }
+      }
+      chars.position(position + n);
+      start += n;
+    }
+    return this;
+  }
+
+  @Override
+  public SpillBuffer append(char c) throws IOException {
+    ensureOpen();
+    if (!chars.hasRemaining()) {
+      encode(false);
+    }
+    chars.put(c);
+    return this;
+  }
+
+  private void ensureOpen() {
+    if (finished) {
+      throw new IllegalStateException("SpillBuffer has been written out");
+    }
+  }
+
+  /**
+   * Encodes the characters appended so far, except a high surrogate
+   * waiting for its pair unless this is the end.
+   */
+  private void encode(boolean end) throws IOException {
+    chars.flip();
+    while (encoder.encode(chars, staging, end).isOverflow()) {
+      store();
+    }
+    if (end) {
+      while (encoder.flush(staging).isOverflow()) {
+        store();
+      }
+    }
+    chars.compact();
+    store();
+  }
+
+  /**
+   * Moves the staged bytes to memory while it has room, and to the file
+   * after that.
+   */
+  private void store() throws IOException {
+    staging.flip();
+    if (file == null) {
+      // fixed size blocks, so nothing is copied to grow and the heap
+      // used stays within memoryLimit plus one block
+      int n = Math.min(memoryLimit - memorySize, staging.remaining());
+      while (n > 0) {
+        int offset = memorySize % BLOCK;
+        if (offset == 0) {
+          memory.add(new byte[BLOCK]);
+        }
+        int m = Math.min(n, BLOCK - offset);
+        staging.get(memory.get(memory.size() - 1), offset, m);
+        memorySize += m;
+        n -= m;
+      }
+      if (staging.hasRemaining()) {
+        Path path = directory != null
+          ? Files.createTempFile(directory, "agilejson", ".spill")
+          : Files.createTempFile("agilejson", ".spill");
+        try {
+          file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException | RuntimeException e) {
+          Files.deleteIfExists(path);
+          throw e;
+        }
+      }
+    }
+    while (staging.hasRemaining()) {
+      fileSize += file.write(staging, fileSize);
+    }
+    staging.clear();
+  }
+
+  /**
+   * Returns the number of bytes held so far.
+   * @return the size in bytes
+   * @throws java.io.IOException if spilling fails
+   */
+  public long size() throws IOException {
+    if (!finished) {
+      encode(false);
+    }
+    return memorySize + fileSize;
+  }
+
+  /**
+   * Returns whether part of the document has gone to the temporary file.
+   * @return true once memoryLimit has been exceeded
+   */
+  public boolean isSpilled() {
+    return file != null;
+  }
+
+  /**
+   * Writes the whole document to target, the spilled part with
+   * FileChannel.transferTo, and ends appending. target must be a blocking
+   * channel; one that accepts no bytes fails the transfer.
+   * @param target
+   * @return the number of bytes written
+   * @throws java.io.IOException
+   */
+  public long transferTo(WritableByteChannel target) throws IOException {
+    if (closed) {
+      throw new IOException("SpillBuffer is closed");
+    }
+    if (!finished) {
+      encode(true);
+      finished = true;
+    }
+    for (int i = 0; i < memory.size(); i++) {
+      ByteBuffer head = ByteBuffer.wrap(memory.get(i), 0, Math.min(BLOCK, memorySize - i * BLOCK));
+      while (head.hasRemaining()) {
+        if (target.write(head) == 0) {
+          throw new IOException("target accepted no bytes");
+        }
+      }
+    }
+    long done = 0;
+    while (done < fileSize) {
+      long n = file.transferTo(done, fileSize - done, target);
+      if (n == 0) {
+        throw new IOException("target accepted no bytes");
+      }
+      done += n;
+    }
+    return memorySize + fileSize;
+  }
+
+  /**
+   * Writes the whole document to out and ends appending.
+   * @param out
+   * @return the number of bytes written
+   * @throws java.io.IOException
+   */
+  public long writeTo(OutputStream out) throws IOException {
+    return transferTo(Channels.newChannel(out));
+  }
+
+  /**
+   * Releases the memory and deletes the temporary file.
+   * @throws java.io.IOException
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    finished = true;
+    memory = null;
+    if (file != null) {
+      file.close();
+    }
+  }
+}
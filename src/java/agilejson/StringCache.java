@@ -0,0 +1,145 @@
+/**
+ * StringCache.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Escaped and quoted forms of short Strings, so that values repeated all
+ * over a document (status codes, country names, labels, ...) are escaped
+ * once and then copied into the output in one append.
+ *
+ * Each thread has its own direct mapped table indexed by the String's hash,
+ * so lookups take no locks; a String replaces whatever was in its slot.
+ * The quoted form is only kept once a String is seen a second time in a
+ * row in its slot, so values that never repeat do not pay for it.
+ * Entries match by identity first and then by equals, so equal Strings that
+ * are different instances also hit.
+ */
+final class StringCache {
+
+  /** Longer Strings are escaped every time. */
+  static final int MAX_LENGTH = 32;
+
+  private static final int MAX_SLOTS = 1 << 20;
+
+  private static final LongAdder HITS = new LongAdder();
+  private static final LongAdder MISSES = new LongAdder();
+
+  /** Slots per thread, a power of two, or 0 when the cache is off. */
+  private static volatile int size = 1024;
+
+  /** Keys in the even entries, their quoted forms in the odd ones. */
+  private static final ThreadLocal<String[]> TABLES = new ThreadLocal<String[]>();
+
+  private StringCache() {}
+
+  static boolean isEnabled() {
+    return size != 0;
+  }
+
+  static int getSize() {
+    return size;
+  }
+
+  /**
+   * Sets the number of slots per thread, rounded up to a power of two.
+   * Tables are resized the next time each thread uses them.
+   */
+  static void setSize(int slots) {
+    int n = 0;
+    if (slots > 0) {
+      n = 1;
+      while (n < slots && n < MAX_SLOTS) {
+        n <<= 1;
+      }
+    }
+    size = n;
+  }
+
+  static long hits() {
+    return HITS.sum();
+  }
+
+  static long misses() {
+    return MISSES.sum();
+  }
+
+  static void resetStats() {
+    HITS.reset();
+    MISSES.reset();
+  }
+
+  /**
+   * Writes s escaped and in double quotes into out, from the cache when it
+   * is there. s must be no longer than MAX_LENGTH. The size is read once,
+   * as the cache may be turned off while this runs.
+   */
+  static void quote(String s, Appendable out) throws IOException {
+    int slots = size;
+    if (slots == 0) {
+      out.append('"');
+      JSON.escape(s, out);
+      out.append('"');
+      return;
+    }
+    String[] table = TABLES.get();
+    if (table == null || table.length != slots * 2) {
+      table = new String[slots * 2];
+      TABLES.set(table);
+    }
+    int h = s.hashCode();
+    int i = ((h ^ (h >>> 16)) & (slots - 1)) << 1;
+    String key = table[i];
+    if (key == s || (key != null && key.equals(s))) {
+      String quoted = table[i + 1];
+      if (quoted != null) {
+        HITS.increment();
+        out.append(quoted);
+        return;
+      }
+      // Seen for the second time: worth keeping the quoted form
+      MISSES.increment();
+      StringBuilder sb = new StringBuilder(s.length() + 8);
+      sb.append('"');
+      JSON.escape(s, sb);
+      sb.append('"');
+      quoted = sb.toString();
+      table[i + 1] = quoted;
+      out.append(quoted);
+      return;
+    }
+    // First sighting: remember only the String, so values that never
+    // repeat cost no more than escaping them
+    MISSES.increment();
+    table[i] = s;
+    table[i + 1] = null;
+    out.append('"');
+    JSON.escape(s, out);
+    out.append('"');
+  }
+}
@@ -42,6 +42,11 @@ import java.lang.annotation.Target;
  * And getName() => { "name" : "method_result" }
  * Was prefixEndIndex
  * and contentEndIndex
+ *
+ * views lists the views the getter is written in, e.g.
+ * views = {"detail"}; a getter with no views is written in all of them.
+ * JSON.toJSON(o, "summary") leaves out every getter that is not in the
+ * summary view, without invoking it.
  */
 
   @Target({ElementType.METHOD})
@@ -51,4 +56,8 @@ import java.lang.annotation.Target;
     int contentLength() default -1;
     String fieldName() default "";
     boolean base64() default false;
+    boolean packed() default false;
+    boolean blocking() default false;
+    boolean columnar() default false;
+    String[] views() default {};
   }
\ No newline at end of file
@@ -281,6 +281,30 @@ public class SpecialHashMap<K, V>
     return h ^ (h >>> 7) ^ (h >>> 4);
   }
 
+  /**
+   * Returns the hash code a key is filed under. Collections and Maps are
+   * hashed by identity, as their own hashCode() walks all of their
+   * elements: that would make adding a nested collection cost as much as
+   * its whole subtree, and overflow the stack on deep or cyclic ones.
+   */
+  static int hashOf(Object key) {
+    if (key instanceof Collection || key instanceof Map) {
+      return System.identityHashCode(key);
+    }
+    return key.hashCode();
+  }
+
+  /**
+   * Returns whether key matches k, which is not the same instance;
+   * Collections and Maps only ever match themselves.
+   */
+  static boolean eq(Object key, Object k) {
+    if (key instanceof Collection || key instanceof Map) {
+      return false;
+    }
+    return key.equals(k);
+  }
+
   /**
    * Returns index for hash code h.
    */
@@ -327,12 +351,12 @@ public class SpecialHashMap<K, V>
     if (key == null) {
       return getForNullKey();
     }
-    int hash = hash(key.hashCode());
+    int hash = hash(hashOf(key));
     for (Entry<K, V> e = table[indexFor(hash, table.length)];
       e != null;
       e = e.next) {
       Object k;
-      if (e.hash == hash && ((k = e.key) == key || key.equals(k))) {
+      if (e.hash == hash && ((k = e.key) == key || eq(key, k))) {
         return e.value;
       }
     }
@@ -373,7 +397,7 @@ public class SpecialHashMap<K, V>
    * for the key.
    */
   final Entry<K, V> getEntry(Object key) {
-    int hash = (key == null) ? 0 : hash(key.hashCode());
+    int hash = (key == null) ? 0 : hash(hashOf(key));
     for (Entry<K, V> e = table[indexFor(hash, table.length)];
       e != null;
       e = e.next) {
@@ -402,11 +426,11 @@ public class SpecialHashMap<K, V>
     if (key == null) {
       return putForNullKey(value);
     }
-    int hash = hash(key.hashCode());
+    int hash = hash(hashOf(key));
     int i = indexFor(hash, table.length);
     for (Entry<K, V> e = table[i]; e != null; e = e.next) {
       Object k;
-      if (e.hash == hash && ((k = e.key) == key || key.equals(k))) {
+      if (e.hash == hash && ((k = e.key) == key || eq(key, k))) {
         V oldValue = e.value;
         e.value = value;
         e.recordAccess(this);
@@ -443,7 +467,7 @@ public class SpecialHashMap<K, V>
    * addEntry.
    */
   private void putForCreate(K key, V value) {
-    int hash = (key == null) ? 0 : hash(key.hashCode());
+    int hash = (key == null) ? 0 : hash(hashOf(key));
     int i = indexFor(hash, table.length);
 
     /**
@@ -454,7 +478,7 @@ public class SpecialHashMap<K, V>
     for (Entry<K, V> e = table[i]; e != null; e = e.next) {
       Object k;
       if (e.hash == hash &&
-        ((k = e.key) == key || (key != null && key.equals(k)))) {
+        ((k = e.key) == key || (key != null && eq(key, k)))) {
         e.value = value;
         return;
       }
@@ -582,7 +606,7 @@ public class SpecialHashMap<K, V>
    * for this key.
    */
   final Entry<K, V> removeEntryForKey(Object key) {
-    int hash = (key == null) ? 0 : hash(key.hashCode());
+    int hash = (key == null) ? 0 : hash(hashOf(key));
     int i = indexFor(hash, table.length);
     Entry<K, V> prev = table[i];
     Entry<K, V> e = prev;
@@ -591,7 +615,7 @@ public class SpecialHashMap<K, V>
       Entry<K, V> next = e.next;
       Object k;
       if (e.hash == hash &&
-        ((k = e.key) == key || (key != null && key.equals(k)))) {
+        ((k = e.key) == key || (key != null && eq(key, k)))) {
         modCount++;
         size--;
         if (prev == e) {
@@ -619,7 +643,7 @@ public class SpecialHashMap<K, V>
 
     Map.Entry<K, V> entry = (Map.Entry<K, V>) o;
     Object key = entry.getKey();
-    int hash = (key == null) ? 0 : hash(key.hashCode());
+    int hash = (key == null) ? 0 : hash(hashOf(key));
     int i = indexFor(hash, table.length);
     Entry<K, V> prev = table[i];
     Entry<K, V> e = prev;
@@ -0,0 +1,226 @@
+/**
+ * Base64Test.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+/**
+ * Round trips through the Base64 codec: GZIP with pooled Deflaters and
+ * Inflaters, the Base64 streams, the file helpers and ByteBuffer and
+ * InputStream values encoded straight into an Appendable.
+ */
+public class Base64Test extends TestCase {
+
+  /** Lengths around the 3 byte groups, lines and blocks of the codec. */
+  private static final int[] LENGTHS = {0, 1, 2, 3, 4, 56, 57, 58, 1000, 57 * 1024 + 1, 200000};
+
+  private static byte[] data(int length) {
+    byte[] bytes = new byte[length];
+    Random random = new Random(length);
+    // half random, half repetitive so that GZIP has something to do
+    for (int i = 0; i < length; i++) {
+      bytes[i] = i % 2 == 0 ? (byte) random.nextInt() : (byte) (i % 7);
+    }
+    return bytes;
+  }
+
+  private static byte[] readAll(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] block = new byte[1000];
+    int n;
+    while ((n = in.read(block)) >= 0) {
+      out.write(block, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  public void testBytes() throws Exception {
+    int[] options = {Base64.NO_OPTIONS, Base64.DONT_BREAK_LINES, Base64.URL_SAFE, Base64.ORDERED};
+    for (int i = 0; i < LENGTHS.length; i++) {
+      byte[] bytes = data(LENGTHS[i]);
+      for (int j = 0; j < options.length; j++) {
+        String text = Base64.encodeBytes(bytes, options[j]);
+        assertTrue(Arrays.equals(bytes, Base64.decode(text, options[j])));
+      }
+    }
+  }
+
+  public void testGzip() throws Exception {
+    int[] levels = {Deflater.DEFAULT_COMPRESSION, 0, 1, 9};
+    for (int i = 0; i < LENGTHS.length; i++) {
+      byte[] bytes = data(LENGTHS[i]);
+      for (int j = 0; j < levels.length; j++) {
+        String text = Base64.encodeBytes(bytes, 0, bytes.length, Base64.GZIP, levels[j]);
+        assertTrue(Arrays.equals(bytes, Base64.decode(text)));
+        // and what GZIPInputStream makes of it
+        byte[] ascii = text.getBytes("US-ASCII");
+        byte[] gzip = Base64.decode(ascii, 0, ascii.length, Base64.NO_OPTIONS);
+        assertTrue(Arrays.equals(bytes, readAll(new GZIPInputStream(new ByteArrayInputStream(gzip)))));
+      }
+    }
+  }
+
+  public void testPooledGzipStream() throws Exception {
+    byte[] bytes = data(100000);
+    for (int round = 0; round < 3; round++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      OutputStream gzip = new Base64.PooledGZIPOutputStream(out, 6);
+      gzip.write(bytes, 0, 1000);
+      gzip.write(bytes, 1000, bytes.length - 1000);
+      gzip.close();
+      byte[] unzipped = readAll(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+      assertTrue(Arrays.equals(bytes, unzipped));
+    }
+  }
+
+  public void testObject() throws Exception {
+    ArrayList<Object> list = new ArrayList<Object>();
+    list.add("text");
+    list.add(Integer.valueOf(42));
+    list.add(data(5000));
+    String plain = Base64.encodeObject(list);
+    String gzip = Base64.encodeObject(list, Base64.GZIP, 9);
+    ArrayList back = (ArrayList) Base64.decodeToObject(plain);
+    assertEquals("text", back.get(0));
+    assertEquals(Integer.valueOf(42), back.get(1));
+    assertTrue(Arrays.equals(data(5000), (byte[]) back.get(2)));
+    back = (ArrayList) Base64.decodeToObject(gzip);
+    assertTrue(Arrays.equals(data(5000), (byte[]) back.get(2)));
+  }
+
+  public void testStreams() throws Exception {
+    for (int i = 0; i < LENGTHS.length; i++) {
+      byte[] bytes = data(LENGTHS[i]);
+      ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+      OutputStream out = new Base64.Base64OutputStream(encoded);
+      // uneven writes, so triplets are split across calls
+      int off = 0;
+      int step = 1;
+      while (off < bytes.length) {
+        int n = Math.min(step, bytes.length - off);
+        out.write(bytes, off, n);
+        off += n;
+        step = step * 2 + 1;
+      }
+      out.close();
+      assertEquals(Base64.encodeBytes(bytes), encoded.toString("US-ASCII"));
+      InputStream in = new Base64.Base64InputStream(new ByteArrayInputStream(encoded.toByteArray()));
+      assertTrue(Arrays.equals(bytes, readAll(in)));
+    }
+  }
+
+  public void testFiles() throws Exception {
+    File dir = Files.createTempDirectory("base64test").toFile();
+    File raw = new File(dir, "raw");
+    File text = new File(dir, "text");
+    File back = new File(dir, "back");
+    try {
+      for (int i = 0; i < LENGTHS.length; i++) {
+        byte[] bytes = data(LENGTHS[i]);
+        Files.write(raw.toPath(), bytes);
+        String encoded = Base64.encodeFromFile(raw.getPath());
+        // encodeBytes ends a last full line with a newline, the files do not
+        assertEquals(Base64.encodeBytes(bytes).trim(), encoded);
+
+        Base64.encodeFileToFile(raw.getPath(), text.getPath());
+        assertEquals(encoded, new String(Files.readAllBytes(text.toPath()), "US-ASCII"));
+        assertTrue(Arrays.equals(bytes, Base64.decodeFromFile(text.getPath())));
+
+        Base64.decodeFileToFile(text.getPath(), back.getPath());
+        assertTrue(Arrays.equals(bytes, Files.readAllBytes(back.toPath())));
+
+        assertTrue(Base64.encodeToFile(bytes, text.getPath()));
+        assertTrue(Base64.decodeToFile(encoded, back.getPath()));
+        assertTrue(Arrays.equals(bytes, Files.readAllBytes(back.toPath())));
+      }
+    } finally {
+      raw.delete();
+      text.delete();
+      back.delete();
+      dir.delete();
+    }
+  }
+
+  public void testAppendable() throws Exception {
+    for (int i = 0; i < LENGTHS.length; i++) {
+      byte[] bytes = data(LENGTHS[i]);
+      String expected = Base64.encodeBytes(bytes, Base64.DONT_BREAK_LINES);
+
+      ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 3);
+      direct.put(new byte[3]).put(bytes).flip();
+      direct.position(3);
+      StringBuilder sb = new StringBuilder();
+      Base64.encode(direct, sb, Base64.DONT_BREAK_LINES);
+      assertEquals(expected, sb.toString());
+      assertEquals(3, direct.position());
+
+      sb.setLength(0);
+      Base64.encode(new ByteArrayInputStream(bytes), sb, Base64.DONT_BREAK_LINES);
+      assertEquals(expected, sb.toString());
+    }
+  }
+
+  public static class Binary {
+    private final byte[] bytes;
+
+    Binary(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @TOJSON
+    public ByteBuffer getBuffer() {
+      return ByteBuffer.wrap(bytes);
+    }
+
+    @TOJSON
+    public InputStream getStream() {
+      return new ByteArrayInputStream(bytes);
+    }
+  }
+
+  public void testJsonValues() throws Exception {
+    byte[] bytes = data(100000);
+    JSONObject json = new JSONObject(JSON.toJSON(new Binary(bytes)));
+    assertTrue(Arrays.equals(bytes, Base64.decode(json.getString("buffer"))));
+    assertTrue(Arrays.equals(bytes, Base64.decode(json.getString("stream"))));
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * ImmutableCacheTest.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the cache of @IMMUTABLE instances does not change what is
+ * written, whatever was written before an instance and whichever document
+ * filled the cache.
+ */
+public class ImmutableCacheTest extends TestCase {
+
+  @IMMUTABLE
+  public static class Leaf {
+    private final String name;
+
+    Leaf(String name) {
+      this.name = name;
+    }
+
+    @TOJSON
+    public String getName() {
+      return name;
+    }
+  }
+
+  @IMMUTABLE
+  public static class Pair {
+    private final Object left;
+    private final Object right;
+
+    Pair(Object left, Object right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @TOJSON
+    public Object getLeft() {
+      return left;
+    }
+
+    @TOJSON
+    public Object getRight() {
+      return right;
+    }
+  }
+
+  public static class Holder {
+    Object a;
+    Object b;
+
+    Holder(Object a, Object b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    @TOJSON
+    public Object getA() {
+      return a;
+    }
+
+    @TOJSON
+    public Object getB() {
+      return b;
+    }
+  }
+
+  private long size;
+
+  protected void setUp() {
+    size = JSON.getImmutableCacheSize();
+  }
+
+  protected void tearDown() {
+    JSON.setImmutableCacheSize(size);
+  }
+
+  private static Object[] documents() {
+    Holder shared = new Holder("s", 1);
+    Pair pair = new Pair(shared, new Leaf("x"));
+    Pair twice = new Pair(pair, pair);
+    Holder holder = new Holder(null, null);
+    Pair cycle = new Pair(holder, "c");
+    holder.a = cycle;
+    holder.b = new Pair(cycle, cycle);
+    return new Object[] {
+      new Object[] {shared, pair},
+      new Object[] {pair, shared, pair},
+      new Object[] {twice, twice, pair},
+      new Holder(pair, shared),
+      new Object[] {holder, cycle, holder},
+      Arrays.asList(pair, Arrays.asList(pair, twice), new Holder(twice, pair))
+    };
+  }
+
+  public void testSameOutputWithCache() throws Exception {
+    Object[] documents = documents();
+    JSON.setImmutableCacheSize(0);
+    String[] expected = new String[documents.length];
+    for (int i = 0; i < documents.length; i++) {
+      expected[i] = JSON.toJSON(documents[i]);
+    }
+    JSON.setImmutableCacheSize(1 << 20);
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < documents.length; i++) {
+        assertEquals(expected[i], JSON.toJSON(documents[i]));
+      }
+    }
+    for (int i = documents.length - 1; i >= 0; i--) {
+      assertEquals(expected[i], JSON.toJSON(documents[i]));
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/**
+ * JSONEncoderTest.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the depth of a document is bounded by the heap and not by
+ * the thread's stack, for arrays and for collections alike, and that
+ * encoding into ByteBuffers gives the bytes of toJSON's text whatever the
+ * size of the buffers.
+ */
+public class JSONEncoderTest extends TestCase {
+
+  private static final int DEPTH = 50000;
+
+  /** Stack of the thread the deep documents are written on. */
+  private static final long STACK = 256 * 1024;
+
+  /**
+   * Runs toJSON(o) on a thread with a small stack and returns the result.
+   */
+  private static String toJSONOnSmallStack(final Object o) throws Exception {
+    final String[] json = new String[1];
+    final Throwable[] failure = new Throwable[1];
+    Thread t = new Thread(null, new Runnable() {
+      public void run() {
+        try {
+          json[0] = JSON.toJSON(o);
+        } catch (Throwable e) {
+          failure[0] = e;
+        }
+      }
+    }, "deep", STACK);
+    t.start();
+    t.join();
+    if (failure[0] instanceof Exception) {
+      throw (Exception) failure[0];
+    } else if (failure[0] != null) {
+      throw new AssertionError(failure[0]);
+    }
+    return json[0];
+  }
+
+  private static String nested(String open, String leaf, String close) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < DEPTH; i++) {
+      sb.append(open);
+    }
+    sb.append(leaf);
+    for (int i = 0; i < DEPTH; i++) {
+      sb.append(close);
+    }
+    return sb.toString();
+  }
+
+  public void testDeepArray() throws Exception {
+    Object o = "x";
+    for (int i = 0; i < DEPTH; i++) {
+      o = new Object[] {o};
+    }
+    assertEquals(nested("[", "\"x\"", "]"), toJSONOnSmallStack(o));
+  }
+
+  public void testDeepList() throws Exception {
+    Object o = "x";
+    for (int i = 0; i < DEPTH; i++) {
+      List<Object> list = new ArrayList<Object>();
+      list.add(o);
+      o = list;
+    }
+    assertEquals(nested("[", "\"x\"", "]"), toJSONOnSmallStack(o));
+  }
+
+  public void testDeepMap() throws Exception {
+    Object o = "x";
+    for (int i = 0; i < DEPTH; i++) {
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      map.put("k", o);
+      o = map;
+    }
+    assertEquals(nested("{\"k\":", "\"x\"", "}"), toJSONOnSmallStack(o));
+  }
+
+  public void testCollectionInsideItself() throws Exception {
+    List<Object> list = new ArrayList<Object>();
+    list.add(1);
+    list.add(list);
+    assertEquals("[1,null]", JSON.toJSON(list));
+  }
+
+  /**
+   * Encodes root into buffers of the given size and returns the bytes.
+   */
+  private static byte[] encode(Object root, Charset charset, int size) throws Exception {
+    JSONEncoder encoder = new JSONEncoder(root, charset);
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    boolean more;
+    do {
+      buffer.clear();
+      more = encoder.encode(buffer);
+      buffer.flip();
+      out.write(buffer.array(), 0, buffer.limit());
+    } while (more);
+    return out.toByteArray();
+  }
+
+  public void testEncodeIntoBuffers() throws Exception {
+    Object[] roots = {Sample.table(100), Sample.rows(0), "\ud83d\ude00", null};
+    int[] sizes = {1, 2, 3, 5, 64, 8192};
+    for (int i = 0; i < roots.length; i++) {
+      String json = JSON.toJSON(roots[i]);
+      for (int k = 0; k < sizes.length; k++) {
+        byte[] utf8 = encode(roots[i], StandardCharsets.UTF_8, sizes[k]);
+        assertTrue(Arrays.equals(json.getBytes(StandardCharsets.UTF_8), utf8));
+        byte[] utf16 = encode(roots[i], StandardCharsets.UTF_16, sizes[k]);
+        assertEquals(json, new String(utf16, StandardCharsets.UTF_16));
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * NDJSONPipelineTest.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that an NDJSONPipeline writes the same lines as an NDJSONWriter,
+ * in order, for any number of workers and slots, and that a failing
+ * output stream ends it instead of leaving it stuck.
+ */
+public class NDJSONPipelineTest extends TestCase {
+
+  public void testSameAsWriter() throws Exception {
+    List<Object> records = Sample.records(3000);
+    String expected = NDJSONWriterTest.expected(records);
+    int[][] configs = {{1, 1}, {1, 16}, {4, 2}, {4, 64}};
+    for (int i = 0; i < configs.length; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      NDJSONPipeline pipeline = new NDJSONPipeline(out, configs[i][0], configs[i][1]);
+      assertEquals(records.size(), pipeline.writeAll(records));
+      pipeline.close();
+      assertEquals(records.size(), pipeline.getRecordCount());
+      assertEquals(out.size(), pipeline.getByteCount());
+      assertEquals(expected, out.toString("UTF-8"));
+    }
+  }
+
+  public void testStream() throws Exception {
+    List<Object> records = Sample.records(1000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    NDJSONPipeline pipeline = new NDJSONPipeline(out, 3, 8);
+    pipeline.writeAll(records.stream());
+    pipeline.close();
+    assertEquals(NDJSONWriterTest.expected(records), out.toString("UTF-8"));
+  }
+
+  public void testErrorFromOutput() throws Exception {
+    final OutputStream broken = new OutputStream() {
+      public void write(int b) {
+        throw new AssertionError("broken");
+      }
+
+      public void write(byte[] b, int off, int len) {
+        throw new AssertionError("broken");
+      }
+    };
+    final Throwable[] thrown = new Throwable[1];
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        NDJSONPipeline pipeline = new NDJSONPipeline(broken, 2, 4);
+        try {
+          pipeline.writeAll(Sample.records(100000));
+          pipeline.close();
+        } catch (Throwable e) {
+          thrown[0] = e;
+          try {
+            pipeline.close();
+          } catch (Throwable ignored) {
+            // the same failure again
+          }
+        }
+      }
+    });
+    t.start();
+    t.join(30000);
+    assertFalse("pipeline hung", t.isAlive());
+    assertTrue(thrown[0] instanceof AssertionError);
+    assertEquals("broken", thrown[0].getMessage());
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * NDJSONWriterTest.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that each line an NDJSONWriter writes is toJSON of its record,
+ * whatever the flush size.
+ */
+public class NDJSONWriterTest extends TestCase {
+
+  static String expected(List<Object> records) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < records.size(); i++) {
+      sb.append(JSON.toJSON(records.get(i))).append('\n');
+    }
+    return sb.toString();
+  }
+
+  public void testLines() throws Exception {
+    List<Object> records = Sample.records(3000);
+    String expected = expected(records);
+    int[] flushBytes = {1, 100, 64 * 1024};
+    for (int i = 0; i < flushBytes.length; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      NDJSONWriter writer = new NDJSONWriter(out);
+      writer.setFlushBytes(flushBytes[i]);
+      assertEquals(records.size(), writer.writeAll(records));
+      writer.close();
+      assertEquals(records.size(), writer.getRecordCount());
+      assertEquals(expected, out.toString("UTF-8"));
+    }
+  }
+
+  public void testRecordByRecord() throws Exception {
+    List<Object> records = Sample.records(500);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    NDJSONWriter writer = new NDJSONWriter(out);
+    for (int i = 0; i < records.size(); i++) {
+      writer.write(records.get(i));
+      if (i % 100 == 0) {
+        writer.flush();
+      }
+    }
+    writer.close();
+    assertEquals(expected(records), out.toString("UTF-8"));
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * ParallelSerializerTest.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that arrays and lists split up on a ForkJoinPool are written the
+ * same as they are sequentially.
+ */
+public class ParallelSerializerTest extends TestCase {
+
+  private static final int[] SIZES = {0, 1, 600, 5000};
+
+  private int threshold;
+  private ForkJoinPool pool;
+
+  protected void setUp() {
+    threshold = JSON.getParallelThreshold();
+    pool = new ForkJoinPool(4);
+  }
+
+  protected void tearDown() {
+    JSON.setParallelThreshold(threshold);
+    JSON.setParallelPool(null);
+    pool.shutdown();
+  }
+
+  /**
+   * Returns the documents written for each size: rows as an array and as
+   * a List, and a table whose rows refer back to it.
+   */
+  private static List<String> write(boolean parallel) throws Exception {
+    List<String> json = new ArrayList<String>();
+    for (int i = 0; i < SIZES.length; i++) {
+      List<Sample.Row> rows = Sample.rows(SIZES[i]);
+      json.add(JSON.toJSON(rows.toArray()));
+      json.add(JSON.toJSON(rows));
+      json.add(JSON.toJSON(Sample.table(SIZES[i])));
+    }
+    return json;
+  }
+
+  public void testSameAsSequential() throws Exception {
+    JSON.setParallelThreshold(0);
+    List<String> expected = write(false);
+    JSON.setParallelPool(pool);
+    JSON.setParallelThreshold(2);
+    assertEquals(expected, write(true));
+  }
+}
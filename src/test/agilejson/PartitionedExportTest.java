@@ -0,0 +1,120 @@
+/**
+ * PartitionedExportTest.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Checks that exporting in partitions writes the same array as toJSON,
+ * whether to one file or to a file per partition.
+ */
+public class PartitionedExportTest extends TestCase {
+
+  private static final int[] SIZES = {0, 1, 7, 2500};
+  private static final int[] PARTITIONS = {1, 3, 8};
+
+  private Path directory;
+
+  protected void setUp() throws Exception {
+    directory = Files.createTempDirectory("exporttest");
+  }
+
+  protected void tearDown() throws Exception {
+    File[] files = directory.toFile().listFiles();
+    for (int i = 0; i < files.length; i++) {
+      files[i].delete();
+    }
+    Files.delete(directory);
+  }
+
+  private static String read(Path file) throws Exception {
+    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+  }
+
+  public void testToFile() throws Exception {
+    Path file = directory.resolve("all.json");
+    for (int i = 0; i < SIZES.length; i++) {
+      List<Sample.Row> rows = Sample.rows(SIZES[i]);
+      String expected = JSON.toJSON(rows);
+      for (int j = 0; j < PARTITIONS.length; j++) {
+        long length = PartitionedExport.toFile(rows, file, PARTITIONS[j]);
+        assertEquals(expected, read(file));
+        assertEquals(Files.size(file), length);
+        PartitionedExport.toFile(rows.toArray(), file, PARTITIONS[j]);
+        assertEquals(expected, read(file));
+      }
+    }
+    // only the result is left, no partition files
+    assertEquals(1, directory.toFile().list().length);
+  }
+
+  public void testToFiles() throws Exception {
+    for (int i = 0; i < SIZES.length; i++) {
+      List<Sample.Row> rows = Sample.rows(SIZES[i]);
+      String expected = JSON.toJSON(rows);
+      for (int j = 0; j < PARTITIONS.length; j++) {
+        String name = "rows" + i + "-" + j;
+        List<Path> files = PartitionedExport.toFiles(rows, directory, name, PARTITIONS[j], true);
+        JSONObject manifest = new JSONObject(read(directory.resolve(name + ".manifest.json")));
+        assertEquals(rows.size(), manifest.getInt("count"));
+        JSONArray partitions = manifest.getJSONArray("partitions");
+        assertEquals(files.size(), partitions.length());
+
+        // the partitions' elements joined back up make the whole array
+        StringBuilder joined = new StringBuilder("[");
+        int from = 0;
+        for (int k = 0; k < files.size(); k++) {
+          String part = read(files.get(k));
+          JSONObject entry = partitions.getJSONObject(k);
+          assertEquals(files.get(k).getFileName().toString(), entry.getString("file"));
+          assertEquals(from, entry.getInt("from"));
+          assertEquals(Files.size(files.get(k)), entry.getLong("bytes"));
+          assertEquals(entry.getInt("count"), new JSONArray(part).length());
+          from += entry.getInt("count");
+          String elements = part.substring(1, part.length() - 1);
+          if (elements.length() > 0) {
+            if (joined.length() > 1) {
+              joined.append(',');
+            }
+            joined.append(elements);
+          }
+        }
+        joined.append(']');
+        assertEquals(rows.size(), from);
+        assertEquals(expected, joined.toString());
+      }
+    }
+  }
+}
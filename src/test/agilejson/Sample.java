@@ -0,0 +1,195 @@
+/**
+ * Sample.java
+ * Copyright 2009 Michael Gottesman
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * The Software shall be used for Good, not Evil.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ **/
+
+package agilejson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Documents that the ways of writing Json other than JSON.toJSON are
+ * checked against it with: rows of beans with Strings that need escaping,
+ * numbers, collections, Maps, arrays, nulls and references back to their
+ * row, and a table of such rows that they refer back to. Nothing is shared
+ * between rows except the table.
+ */
+final class Sample {
+
+  private Sample() {}
+
+  public static class Table {
+    private final String name;
+    private final List<Row> rows = new ArrayList<Row>();
+
+    Table(String name) {
+      this.name = name;
+    }
+
+    @TOJSON
+    public String getName() {
+      return name;
+    }
+
+    @TOJSON
+    public List<Row> getRows() {
+      return rows;
+    }
+  }
+
+  public static class Row {
+    private final int id;
+    private final Table table;
+    private final Child child;
+
+    Row(int id, Table table) {
+      this.id = id;
+      this.table = table;
+      this.child = new Child(this);
+    }
+
+    @TOJSON
+    public int getId() {
+      return id;
+    }
+
+    @TOJSON
+    public String getName() {
+      return "row \"" + id + "\"\t\u00e9\u4e2d\ud83d\ude00 </script>";
+    }
+
+    @TOJSON
+    public double getPrice() {
+      return id * 0.25;
+    }
+
+    @TOJSON
+    public List<String> getTags() {
+      return Arrays.asList("t" + id % 3, "t" + id % 5);
+    }
+
+    @TOJSON
+    public Map<String, Object> getAttributes() {
+      Map<String, Object> m = new LinkedHashMap<String, Object>();
+      m.put("even", Boolean.valueOf(id % 2 == 0));
+      m.put("square", Long.valueOf((long) id * id));
+      m.put("none", null);
+      return m;
+    }
+
+    @TOJSON
+    public int[] getScores() {
+      return new int[] {id, -id, id % 7};
+    }
+
+    @TOJSON
+    public Child getChild() {
+      return child;
+    }
+
+    @TOJSON
+    public Table getTable() {
+      return table;
+    }
+
+    @TOJSON
+    public Object getMissing() {
+      return null;
+    }
+  }
+
+  public static class Child {
+    private final Row parent;
+
+    Child(Row parent) {
+      this.parent = parent;
+    }
+
+    @TOJSON
+    public Row getParent() {
+      return parent;
+    }
+
+    @TOJSON
+    public String getLabel() {
+      return "child of " + parent.id;
+    }
+  }
+
+  /**
+   * Returns a table of n rows that refer back to it.
+   */
+  static Table table(int n) {
+    Table table = new Table("table of " + n);
+    for (int i = 0; i < n; i++) {
+      table.rows.add(new Row(i, table));
+    }
+    return table;
+  }
+
+  /**
+   * Returns n rows that are in no table.
+   */
+  static List<Row> rows(int n) {
+    List<Row> rows = new ArrayList<Row>(n);
+    for (int i = 0; i < n; i++) {
+      rows.add(new Row(i, null));
+    }
+    return rows;
+  }
+
+  /**
+   * Returns n records of mixed kinds, written one per line by the NDJSON
+   * writers: rows, tables that share nothing with each other, Strings,
+   * numbers, arrays and nulls.
+   */
+  static List<Object> records(int n) {
+    List<Object> records = new ArrayList<Object>(n);
+    for (int i = 0; i < n; i++) {
+      switch (i % 6) {
+        case 0:
+          records.add(new Row(i, null));
+          break;
+        case 1:
+          records.add(table(i % 4));
+          break;
+        case 2:
+          records.add("line " + i + "\n\u2028");
+          break;
+        case 3:
+          records.add(Integer.valueOf(i));
+          break;
+        case 4:
+          records.add(new long[] {i, i * 1000000000L});
+          break;
+        default:
+          records.add(null);
+      }
+    }
+    return records;
+  }
+}